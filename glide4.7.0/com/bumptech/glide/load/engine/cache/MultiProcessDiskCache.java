@@ -0,0 +1,568 @@
+package com.bumptech.glide.load.engine.cache;
+
+import android.util.Log;
+import com.bumptech.glide.load.Key;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link DiskCache} that can be safely shared by multiple processes using the same directory.
+ *
+ * <p>Unlike {@link DiskLruCacheWrapper}, which keeps its LRU state in a journal owned by a single
+ * instance, this cache keeps sizes and access times in a memory mapped index file that every
+ * process maps. Mutations of the index are guarded by an exclusive {@link FileLock} on a region of
+ * a separate lock file, and writes to a key are guarded by a striped region lock, so two processes
+ * never write the same entry at the same time and an entry fetched by one process is immediately
+ * visible to the others. </p>
+ *
+ * <p>There must be no more than one active instance for a given directory per process, file locks
+ * are held on behalf of the whole JVM and can't be used to coordinate threads. </p>
+ */
+public class MultiProcessDiskCache implements DiskCache {
+  private static final String TAG = "MultiProcessDiskCache";
+
+  private static final String INDEX_FILE = "mp_index";
+  private static final String LOCK_FILE = "mp_lock";
+  private static final String DATA_SUFFIX = ".data";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private static final int MAGIC = 0x474c4d50; // "GLMP"
+  private static final int VERSION = 1;
+
+  // Header layout: magic, version, capacity, liveCount, usedCount, totalSize.
+  private static final int MAGIC_OFFSET = 0;
+  private static final int VERSION_OFFSET = 4;
+  private static final int CAPACITY_OFFSET = 8;
+  private static final int LIVE_COUNT_OFFSET = 12;
+  private static final int USED_COUNT_OFFSET = 16;
+  private static final int TOTAL_SIZE_OFFSET = 24;
+  private static final int HEADER_SIZE = 32;
+
+  // Slot layout: key hash, size, last access time.
+  private static final int SLOT_SIZE = 24;
+  private static final int SLOT_SIZE_OFFSET = 8;
+  private static final int SLOT_ACCESS_OFFSET = 16;
+  private static final long EMPTY = 0;
+  private static final long TOMBSTONE = 1;
+
+  private static final int INITIAL_CAPACITY = 4096;
+  // Slots are packed into the low 20 bits of the eviction order.
+  private static final int MAX_CAPACITY = 1 << 20;
+  private static final int STRIPE_COUNT = 64;
+
+  private static final int INDEX_LOCK_POSITION = 0;
+  private static final int STRIPE_LOCK_POSITION = 1;
+
+  private final SafeKeyGenerator safeKeyGenerator;
+  private final File directory;
+  private final long maxSize;
+  private final ReentrantLock[] stripes = new ReentrantLock[STRIPE_COUNT];
+  private final Object indexLock = new Object();
+
+  private RandomAccessFile lockFile;
+  private MappedByteBuffer index;
+  private int capacity;
+
+  /**
+   * Create a new DiskCache in the given directory with a specified max size. The directory may be
+   * shared with other processes that create their own instance for it.
+   *
+   * <p>The index grows with the number of entries, so small entries can fill the cache up to
+   * {@code maxSize}. It holds at most 524,288 entries though. Beyond that the least recently used
+   * entries are evicted even if the cache is smaller than {@code maxSize}. </p>
+   *
+   * @param directory The directory for the disk cache
+   * @param maxSize   The max size for the disk cache
+   * @return The new disk cache with the given arguments
+   */
+  public static DiskCache create(File directory, long maxSize) {
+    return new MultiProcessDiskCache(directory, maxSize);
+  }
+
+  MultiProcessDiskCache(File directory, long maxSize) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    this.safeKeyGenerator = new SafeKeyGenerator();
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+  }
+
+  @Override
+  public File get(Key key) {
+    String safeKey = safeKeyGenerator.getSafeKey(key);
+    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+      Log.v(TAG, "Get: Obtained: " + safeKey + " for for Key: " + key);
+    }
+    File result = null;
+    try {
+      MappedByteBuffer index = getIndex();
+      File file = dataFile(safeKey);
+      if (file.exists()) {
+        // Updating the access time is a single aligned write to the shared mapping, so we don't
+        // take the index lock for it. A racing eviction can at worst drop a recently used entry.
+        int slot = findSlot(index, hash(safeKey));
+        if (slot != -1) {
+          index.putLong(slotOffset(slot) + SLOT_ACCESS_OFFSET, System.currentTimeMillis());
+        }
+        result = file;
+      }
+    } catch (IOException e) {
+      if (Log.isLoggable(TAG, Log.WARN)) {
+        Log.w(TAG, "Unable to get from disk cache", e);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void put(Key key, Writer writer) {
+    String safeKey = safeKeyGenerator.getSafeKey(key);
+    long hash = hash(safeKey);
+    int stripe = (int) ((hash >>> 1) % STRIPE_COUNT);
+    ReentrantLock stripeLock = stripes[stripe];
+    stripeLock.lock();
+    try {
+      if (Log.isLoggable(TAG, Log.VERBOSE)) {
+        Log.v(TAG, "Put: Obtained: " + safeKey + " for for Key: " + key);
+      }
+      // Opens the lock file on first use.
+      getIndex();
+      FileLock fileLock = lockFile.getChannel().lock(STRIPE_LOCK_POSITION + stripe, 1, false);
+      try {
+        // Another thread or process may have written the same data while we were waiting for the
+        // lock, in which case there's nothing left to do unless that writer died before indexing
+        // it. Index such orphans here, otherwise they'd never count towards the size or be evicted.
+        File file = dataFile(safeKey);
+        if (file.exists()) {
+          synchronized (indexLock) {
+            FileLock indexFileLock = lockIndex();
+            try {
+              MappedByteBuffer current = getIndex();
+              if (findSlot(current, hash) == -1) {
+                trimToSize(insert(current, hash, file.length(), file.lastModified()));
+              }
+            } finally {
+              indexFileLock.release();
+            }
+          }
+          return;
+        }
+        File temp = new File(directory, safeKey + TEMP_SUFFIX);
+        if (temp.exists() && !temp.delete()) {
+          throw new IOException("Unable to delete stale temp file: " + temp);
+        }
+        boolean committed = false;
+        try {
+          if (writer.write(temp)) {
+            if (!temp.renameTo(file)) {
+              throw new IOException("Unable to rename " + temp + " to " + file);
+            }
+            committed = true;
+          }
+        } finally {
+          if (!committed) {
+            // Best effort, a leftover temp file is deleted by the next writer for this key.
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+          }
+        }
+        if (committed) {
+          synchronized (indexLock) {
+            FileLock indexFileLock = lockIndex();
+            try {
+              trimToSize(insert(getIndex(), hash, file.length(), System.currentTimeMillis()));
+            } finally {
+              indexFileLock.release();
+            }
+          }
+        }
+      } finally {
+        fileLock.release();
+      }
+    } catch (IOException e) {
+      if (Log.isLoggable(TAG, Log.WARN)) {
+        Log.w(TAG, "Unable to put to disk cache", e);
+      }
+    } finally {
+      stripeLock.unlock();
+    }
+  }
+
+  @Override
+  public void delete(Key key) {
+    String safeKey = safeKeyGenerator.getSafeKey(key);
+    long hash = hash(safeKey);
+    int stripe = (int) ((hash >>> 1) % STRIPE_COUNT);
+    ReentrantLock stripeLock = stripes[stripe];
+    stripeLock.lock();
+    try {
+      // Opens the lock file on first use.
+      getIndex();
+      FileLock fileLock = lockFile.getChannel().lock(STRIPE_LOCK_POSITION + stripe, 1, false);
+      try {
+        synchronized (indexLock) {
+          FileLock indexFileLock = lockIndex();
+          try {
+            File file = dataFile(safeKey);
+            if (file.exists() && !file.delete()) {
+              throw new IOException("Unable to delete " + file);
+            }
+            MappedByteBuffer current = getIndex();
+            int slot = findSlot(current, hash);
+            if (slot != -1) {
+              remove(current, slot);
+            }
+          } finally {
+            indexFileLock.release();
+          }
+        }
+      } finally {
+        fileLock.release();
+      }
+    } catch (IOException e) {
+      if (Log.isLoggable(TAG, Log.WARN)) {
+        Log.w(TAG, "Unable to delete from disk cache", e);
+      }
+    } finally {
+      stripeLock.unlock();
+    }
+  }
+
+  @Override
+  public void clear() {
+    synchronized (indexLock) {
+      try {
+        getIndex();
+        FileLock indexFileLock = lockIndex();
+        try {
+          MappedByteBuffer index = getIndex();
+          File[] files = directory.listFiles();
+          if (files != null) {
+            for (File file : files) {
+              if (file.getName().endsWith(DATA_SUFFIX) && !file.delete()) {
+                throw new IOException("Unable to delete " + file);
+              }
+            }
+          }
+          initializeIndex(index, capacity);
+        } finally {
+          indexFileLock.release();
+        }
+      } catch (IOException e) {
+        if (Log.isLoggable(TAG, Log.WARN)) {
+          Log.w(TAG, "Unable to clear disk cache or disk cache cleared externally", e);
+        }
+      }
+    }
+  }
+
+  private MappedByteBuffer getIndex() throws IOException {
+    synchronized (indexLock) {
+      if (index == null) {
+        openIndex();
+      } else if (index.getInt(CAPACITY_OFFSET) > capacity) {
+        // Another process grew the index. The index is only ever grown, so a smaller value is a
+        // table being initialized rather than a new capacity.
+        mapIndex(index.getInt(CAPACITY_OFFSET));
+      }
+      return index;
+    }
+  }
+
+  private void openIndex() throws IOException {
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Unable to create cache directory: " + directory);
+    }
+    lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+    FileLock indexFileLock = lockIndex();
+    RandomAccessFile indexFile = null;
+    try {
+      indexFile = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+      // The first process to open the index picks the capacity, everyone else has to use it.
+      int existingCapacity = -1;
+      if (indexFile.length() >= HEADER_SIZE) {
+        indexFile.seek(MAGIC_OFFSET);
+        int magic = indexFile.readInt();
+        int version = indexFile.readInt();
+        int storedCapacity = indexFile.readInt();
+        if (magic == MAGIC && version == VERSION && storedCapacity > 0
+            && indexFile.length() == HEADER_SIZE + (long) storedCapacity * SLOT_SIZE) {
+          existingCapacity = storedCapacity;
+        }
+      }
+      capacity = existingCapacity != -1 ? existingCapacity : INITIAL_CAPACITY;
+      long length = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+      indexFile.setLength(length);
+      index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+      if (existingCapacity == -1) {
+        rebuildIndex(index);
+      }
+    } catch (IOException e) {
+      index = null;
+      lockFile.close();
+      lockFile = null;
+      throw e;
+    } finally {
+      // The mapping stays valid after the file is closed.
+      if (indexFile != null) {
+        indexFile.close();
+      }
+      if (indexFileLock.isValid()) {
+        indexFileLock.release();
+      }
+    }
+  }
+
+  /**
+   * Recovers from a missing or corrupt index by re-indexing every committed data file, which also
+   * picks up entries written by a process that died before updating the index.
+   */
+  private void rebuildIndex(MappedByteBuffer index) throws IOException {
+    initializeIndex(index, capacity);
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(TEMP_SUFFIX)) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      } else if (name.endsWith(DATA_SUFFIX)) {
+        String safeKey = name.substring(0, name.length() - DATA_SUFFIX.length());
+        index = insert(index, hash(safeKey), file.length(), file.lastModified());
+      }
+    }
+    trimToSize(index);
+  }
+
+  private void initializeIndex(MappedByteBuffer index, int capacity) {
+    for (int i = 0; i < index.capacity(); i += 8) {
+      index.putLong(i, 0);
+    }
+    index.putInt(MAGIC_OFFSET, MAGIC);
+    index.putInt(VERSION_OFFSET, VERSION);
+    index.putInt(CAPACITY_OFFSET, capacity);
+  }
+
+  /**
+   * Maps the index file with room for {@code newCapacity} slots, extending the file if needed.
+   * The previous mapping stays valid for threads still using it.
+   */
+  private void mapIndex(int newCapacity) throws IOException {
+    RandomAccessFile indexFile = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+    try {
+      long length = HEADER_SIZE + (long) newCapacity * SLOT_SIZE;
+      if (indexFile.length() < length) {
+        indexFile.setLength(length);
+      }
+      index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+      capacity = newCapacity;
+    } finally {
+      indexFile.close();
+    }
+  }
+
+  private FileLock lockIndex() throws IOException {
+    return lockFile.getChannel().lock(INDEX_LOCK_POSITION, 1, false);
+  }
+
+  private File dataFile(String safeKey) {
+    return new File(directory, safeKey + DATA_SUFFIX);
+  }
+
+  private int findSlot(MappedByteBuffer index, long hash) {
+    // Use the capacity of this mapping, get() may race with another thread growing the index.
+    int capacity = (index.capacity() - HEADER_SIZE) / SLOT_SIZE;
+    int slot = (int) ((hash >>> 1) % capacity);
+    for (int probes = 0; probes < capacity; probes++) {
+      long current = index.getLong(slotOffset(slot));
+      if (current == EMPTY) {
+        return -1;
+      } else if (current == hash) {
+        return slot;
+      }
+      slot = (slot + 1) % capacity;
+    }
+    return -1;
+  }
+
+  /**
+   * Adds an entry, growing the table if it's too full. Returns the index to use from now on, which
+   * differs from {@code index} if the table grew.
+   *
+   * <p>Must hold the index lock. </p>
+   */
+  private MappedByteBuffer insert(MappedByteBuffer index, long hash, long size, long lastAccess)
+      throws IOException {
+    int existing = findSlot(index, hash);
+    if (existing != -1) {
+      remove(index, existing);
+    }
+    // Keep the table at most 3/4 full so probe sequences stay short, tombstones count as used.
+    if (index.getInt(USED_COUNT_OFFSET) + 1 > capacity / 4 * 3) {
+      int newCapacity = capacity;
+      if (index.getInt(LIVE_COUNT_OFFSET) + 1 > capacity / 2) {
+        if (capacity < MAX_CAPACITY) {
+          newCapacity = Math.min(capacity * 2, MAX_CAPACITY);
+        } else {
+          // The table can't grow any further, make room by evicting the oldest entries.
+          evictOldest(index, index.getInt(LIVE_COUNT_OFFSET) - capacity / 2 + 1);
+        }
+      }
+      index = rehash(index, newCapacity);
+    }
+    int slot = (int) ((hash >>> 1) % capacity);
+    while (true) {
+      long current = index.getLong(slotOffset(slot));
+      if (current == EMPTY || current == TOMBSTONE) {
+        if (current == EMPTY) {
+          index.putInt(USED_COUNT_OFFSET, index.getInt(USED_COUNT_OFFSET) + 1);
+        }
+        int offset = slotOffset(slot);
+        index.putLong(offset, hash);
+        index.putLong(offset + SLOT_SIZE_OFFSET, size);
+        index.putLong(offset + SLOT_ACCESS_OFFSET, lastAccess);
+        index.putInt(LIVE_COUNT_OFFSET, index.getInt(LIVE_COUNT_OFFSET) + 1);
+        index.putLong(TOTAL_SIZE_OFFSET, index.getLong(TOTAL_SIZE_OFFSET) + size);
+        return index;
+      }
+      slot = (slot + 1) % capacity;
+    }
+  }
+
+  // Must hold the index lock.
+  private void remove(MappedByteBuffer index, int slot) {
+    int offset = slotOffset(slot);
+    long size = index.getLong(offset + SLOT_SIZE_OFFSET);
+    index.putLong(offset, TOMBSTONE);
+    index.putLong(offset + SLOT_SIZE_OFFSET, 0);
+    index.putLong(offset + SLOT_ACCESS_OFFSET, 0);
+    index.putInt(LIVE_COUNT_OFFSET, index.getInt(LIVE_COUNT_OFFSET) - 1);
+    index.putLong(TOTAL_SIZE_OFFSET, index.getLong(TOTAL_SIZE_OFFSET) - size);
+  }
+
+  /**
+   * Drops tombstones by re-inserting every live slot into a table of {@code newCapacity} slots.
+   * Returns the index to use from now on.
+   *
+   * <p>Must hold the index lock. </p>
+   */
+  private MappedByteBuffer rehash(MappedByteBuffer index, int newCapacity) throws IOException {
+    int live = index.getInt(LIVE_COUNT_OFFSET);
+    long[] hashes = new long[live];
+    long[] sizes = new long[live];
+    long[] accessTimes = new long[live];
+    int count = 0;
+    for (int slot = 0; slot < capacity && count < live; slot++) {
+      int offset = slotOffset(slot);
+      long hash = index.getLong(offset);
+      if (hash != EMPTY && hash != TOMBSTONE) {
+        hashes[count] = hash;
+        sizes[count] = index.getLong(offset + SLOT_SIZE_OFFSET);
+        accessTimes[count] = index.getLong(offset + SLOT_ACCESS_OFFSET);
+        count++;
+      }
+    }
+    if (newCapacity != capacity) {
+      mapIndex(newCapacity);
+      index = this.index;
+    }
+    initializeIndex(index, capacity);
+    for (int i = 0; i < count; i++) {
+      // At most half full, so this never grows the table again.
+      index = insert(index, hashes[i], sizes[i], accessTimes[i]);
+    }
+    return index;
+  }
+
+  // Must hold the index lock.
+  private void trimToSize(MappedByteBuffer index) {
+    if (index.getLong(TOTAL_SIZE_OFFSET) > maxSize) {
+      evictOldest(index, Integer.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Evicts entries in least recently accessed order until the cache fits in {@link #maxSize} and
+   * at least {@code minCount} entries have been removed, whichever comes last.
+   *
+   * <p>Must hold the index lock. The slots are sorted once per call rather than scanned once per
+   * evicted entry so that a large trim stays O(n log n). </p>
+   */
+  private void evictOldest(MappedByteBuffer index, int minCount) {
+    int live = index.getInt(LIVE_COUNT_OFFSET);
+    // Pack access time and slot into one long so a primitive sort gives the eviction order.
+    long[] order = new long[live];
+    int count = 0;
+    for (int slot = 0; slot < capacity && count < live; slot++) {
+      int offset = slotOffset(slot);
+      long hash = index.getLong(offset);
+      if (hash != EMPTY && hash != TOMBSTONE) {
+        long accessTime = index.getLong(offset + SLOT_ACCESS_OFFSET);
+        order[count++] = (accessTime << 20) | slot;
+      }
+    }
+    Arrays.sort(order, 0, count);
+    Map<Long, File> dataFiles = null;
+    int evicted = 0;
+    for (int i = 0; i < count; i++) {
+      if (evicted >= minCount && index.getLong(TOTAL_SIZE_OFFSET) <= maxSize) {
+        break;
+      }
+      int slot = (int) (order[i] & ((1 << 20) - 1));
+      if (dataFiles == null) {
+        dataFiles = listDataFiles();
+      }
+      File file = dataFiles.get(index.getLong(slotOffset(slot)));
+      if (file != null && file.exists() && !file.delete()) {
+        if (Log.isLoggable(TAG, Log.WARN)) {
+          Log.w(TAG, "Unable to evict " + file);
+        }
+        continue;
+      }
+      remove(index, slot);
+      evicted++;
+    }
+  }
+
+  private Map<Long, File> listDataFiles() {
+    // The index only stores key hashes, so eviction has to map them back to file names.
+    Map<Long, File> result = new HashMap<>();
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return result;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(DATA_SUFFIX)) {
+        result.put(hash(name.substring(0, name.length() - DATA_SUFFIX.length())), file);
+      }
+    }
+    return result;
+  }
+
+  private static int slotOffset(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  /**
+   * Returns the first 64 bits of the hex SHA-256 safe key, remapped so that it never collides with
+   * the empty and tombstone markers.
+   */
+  private static long hash(String safeKey) {
+    long high = Long.parseLong(safeKey.substring(0, 8), 16);
+    long low = Long.parseLong(safeKey.substring(8, 16), 16);
+    long hash = (high << 32) | low;
+    return hash == EMPTY || hash == TOMBSTONE ? hash + 2 : hash;
+  }
+}
@@ -0,0 +1,66 @@
+package com.bumptech.glide.load.engine.cache;
+
+import android.content.Context;
+import com.bumptech.glide.load.engine.cache.DiskLruCacheFactory.CacheDirectoryGetter;
+import java.io.File;
+
+/**
+ * Creates a {@link MultiProcessDiskCache} in the specified disk cache directory, so that every
+ * process of an app that uses the same directory shares a single copy of each cached image.
+ *
+ * <p>The cache holds at most 524,288 entries whatever its size, see
+ * {@link MultiProcessDiskCache#create(File, long)}. </p>
+ */
+// Public API.
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class MultiProcessDiskCacheFactory implements DiskCache.Factory {
+  private final long diskCacheSize;
+  private final CacheDirectoryGetter cacheDirectoryGetter;
+
+  public MultiProcessDiskCacheFactory(Context context) {
+    this(context, DiskCache.Factory.DEFAULT_DISK_CACHE_DIR,
+        DiskCache.Factory.DEFAULT_DISK_CACHE_SIZE);
+  }
+
+  public MultiProcessDiskCacheFactory(final Context context, final String diskCacheName,
+                                      long diskCacheSize) {
+    this(new CacheDirectoryGetter() {
+      @Override
+      public File getCacheDirectory() {
+        File cacheDirectory = context.getCacheDir();
+        if (cacheDirectory == null) {
+          return null;
+        }
+        if (diskCacheName != null) {
+          return new File(cacheDirectory, diskCacheName);
+        }
+        return cacheDirectory;
+      }
+    }, diskCacheSize);
+  }
+
+  /**
+   * @param cacheDirectoryGetter Interface called out of UI thread to get the cache folder.
+   * @param diskCacheSize        Desired max bytes size for the cache, shared by all processes.
+   */
+  public MultiProcessDiskCacheFactory(CacheDirectoryGetter cacheDirectoryGetter,
+                                      long diskCacheSize) {
+    this.diskCacheSize = diskCacheSize;
+    this.cacheDirectoryGetter = cacheDirectoryGetter;
+  }
+
+  @Override
+  public DiskCache build() {
+    File cacheDir = cacheDirectoryGetter.getCacheDirectory();
+
+    if (cacheDir == null) {
+      return null;
+    }
+
+    if (!cacheDir.mkdirs() && (!cacheDir.exists() || !cacheDir.isDirectory())) {
+      return null;
+    }
+
+    return MultiProcessDiskCache.create(cacheDir, diskCacheSize);
+  }
+}
@@ -30,6 +30,7 @@ import okhttp3.internal.EMPTY_HEADERS
 import okhttp3.internal.cache.CacheRequest
 import okhttp3.internal.cache.CacheStrategy
 import okhttp3.internal.cache.DiskLruCache
+import okhttp3.internal.cache2.RequestCoalescer
 import okhttp3.internal.closeQuietly
 import okhttp3.internal.concurrent.TaskRunner
 import okhttp3.internal.http.HttpMethod
@@ -40,6 +41,7 @@ import okhttp3.internal.toLongOrDefault
 import okio.Buffer
 import okio.BufferedSink
 import okio.BufferedSource
+import okio.ByteString
 import okio.ByteString.Companion.decodeBase64
 import okio.ByteString.Companion.encodeUtf8
 import okio.ByteString.Companion.toByteString
@@ -63,6 +65,22 @@ import okio.buffer
  *  * **[Hit Count:][hitCount]** the number of those requests whose responses were served by the
  *    cache.
  *
+ * ## Memory Tier
+ *
+ * A cache created with a `memoryMaxSize` also keeps the parsed metadata and bodies of small
+ * responses in memory, so that frequently requested responses aren't read and parsed from the
+ * filesystem each time. The memory tier only ever holds responses that are also on disk. It drops
+ * a response as soon as the disk copy is updated, removed or evicted. The
+ * **[Memory Hit Count:][memoryHitCount]** is the number of cache reads that it served.
+ *
+ * ## Request Coalescing
+ *
+ * When [coalesceRequests] is enabled, concurrent calls that make the same cacheable `GET` while
+ * it isn't cached share a single network exchange. The first call makes the request and the others
+ * wait for its response and read the same body as it arrives. Calls are only coalesced if their
+ * URLs and request headers are identical, and only responses that this cache could store are
+ * shared. The **[Coalesced Count:][coalescedCount]** is the number of responses served this way.
+ *
  * Sometimes a request will result in a conditional cache hit. If the cache contains a stale copy of
  * the response, the client will issue a conditional `GET`. The server will then send either
  * the updated response if it has changed, or a short 'not modified' response if the client's copy
@@ -141,7 +159,8 @@ import okio.buffer
 class Cache internal constructor(
   directory: File,
   maxSize: Long,
-  fileSystem: FileSystem
+  fileSystem: FileSystem,
+  memoryMaxSize: Long = 0L
 ) : Closeable, Flushable {
   internal val cache = DiskLruCache(
       fileSystem = fileSystem,
@@ -159,14 +178,43 @@ class Cache internal constructor(
   private var hitCount = 0
   private var requestCount = 0
 
+  // The memory tier, also guarded by 'this'. Entries are in access order, least recent first.
+  private val memoryMaxSize = memoryMaxSize
+  private val memoryMaxBodySize = minOf(MEMORY_MAX_BODY_SIZE, memoryMaxSize / 8)
+  private val memoryEntries = LinkedHashMap<String, MemoryEntry>(0, 0.75f, true)
+  private var memorySize = 0L
+  private var memoryHitCount = 0
+
+  /** True to share one network exchange between concurrent identical cacheable requests. */
+  @get:Synchronized @set:Synchronized var coalesceRequests: Boolean = false
+
+  internal val requestCoalescer = RequestCoalescer(fileSystem, directory)
+
   val isClosed: Boolean
     get() = cache.isClosed()
 
+  init {
+    require(memoryMaxSize >= 0L) { "memoryMaxSize < 0: $memoryMaxSize" }
+  }
+
   /** Create a cache of at most [maxSize] bytes in [directory]. */
   constructor(directory: File, maxSize: Long) : this(directory, maxSize, FileSystem.SYSTEM)
 
+  /**
+   * Create a cache of at most [maxSize] bytes in [directory], that also keeps up to
+   * [memoryMaxSize] bytes of small responses in memory.
+   */
+  constructor(directory: File, maxSize: Long, memoryMaxSize: Long) :
+      this(directory, maxSize, FileSystem.SYSTEM, memoryMaxSize)
+
   internal fun get(request: Request): Response? {
     val key = key(request.url)
+    val memoryEntry = synchronized(this) { memoryEntries[key] }
+    if (memoryEntry != null) {
+      val response = memoryGet(key, memoryEntry, request)
+      if (response != null) return response
+    }
+
     val snapshot: DiskLruCache.Snapshot = try {
       cache[key] ?: return null
     } catch (_: IOException) {
@@ -180,7 +228,20 @@ class Cache internal constructor(
       return null
     }
 
-    val response = entry.response(snapshot)
+    val response = if (memoryMaxSize > 0L && snapshot.getLength(ENTRY_BODY) <= memoryMaxBodySize) {
+      val body = try {
+        snapshot.getSource(ENTRY_BODY).buffer().readByteString()
+      } catch (_: IOException) {
+        return null
+      } finally {
+        snapshot.closeQuietly()
+      }
+      memoryPut(key, MemoryEntry(entry, snapshot.sequenceNumber, body))
+      entry.response(key, snapshot.sequenceNumber, body)
+    } else {
+      entry.response(snapshot)
+    }
+
     if (!entry.matches(request, response)) {
       response.body?.closeQuietly()
       return null
@@ -189,6 +250,58 @@ class Cache internal constructor(
     return response
   }
 
+  /**
+   * Returns the response for [memoryEntry], or null if it doesn't match [request] or the disk
+   * cache no longer holds the same version of it.
+   */
+  private fun memoryGet(key: String, memoryEntry: MemoryEntry, request: Request): Response? {
+    val sequenceNumber = try {
+      cache.readableSequenceNumber(key)
+    } catch (_: IOException) {
+      DiskLruCache.ANY_SEQUENCE_NUMBER
+    }
+    if (sequenceNumber != memoryEntry.sequenceNumber) {
+      memoryRemove(key)
+      return null
+    }
+
+    val response = memoryEntry.entry.response(key, sequenceNumber, memoryEntry.body)
+    if (!memoryEntry.entry.matches(request, response)) return null
+
+    synchronized(this) {
+      memoryHitCount++
+    }
+    return response
+  }
+
+  private fun memoryPut(key: String, memoryEntry: MemoryEntry) {
+    synchronized(this) {
+      val previous = memoryEntries.put(key, memoryEntry)
+      if (previous != null) memorySize -= previous.byteCount
+      memorySize += memoryEntry.byteCount
+
+      val i = memoryEntries.values.iterator()
+      while (memorySize > memoryMaxSize && i.hasNext()) {
+        memorySize -= i.next().byteCount
+        i.remove()
+      }
+    }
+  }
+
+  private fun memoryRemove(key: String) {
+    synchronized(this) {
+      val removed = memoryEntries.remove(key) ?: return
+      memorySize -= removed.byteCount
+    }
+  }
+
+  private fun memoryEvictAll() {
+    synchronized(this) {
+      memoryEntries.clear()
+      memorySize = 0L
+    }
+  }
+
   internal fun put(response: Response): CacheRequest? {
     val requestMethod = response.request.method
 
@@ -212,11 +325,12 @@ class Cache internal constructor(
     }
 
     val entry = Entry(response)
+    val key = key(response.request.url)
     var editor: DiskLruCache.Editor? = null
     try {
-      editor = cache.edit(key(response.request.url)) ?: return null
+      editor = cache.edit(key) ?: return null
       entry.writeTo(editor)
-      return RealCacheRequest(editor)
+      return RealCacheRequest(key, editor)
     } catch (_: IOException) {
       abortQuietly(editor)
       return null
@@ -225,15 +339,28 @@ class Cache internal constructor(
 
   @Throws(IOException::class)
   internal fun remove(request: Request) {
-    cache.remove(key(request.url))
+    val key = key(request.url)
+    memoryRemove(key)
+    cache.remove(key)
   }
 
   internal fun update(cached: Response, network: Response) {
     val entry = Entry(network)
-    val snapshot = (cached.body as CacheResponseBody).snapshot
+    val body = cached.body
     var editor: DiskLruCache.Editor? = null
     try {
-      editor = snapshot.edit() ?: return // edit() returns null if snapshot is not current.
+      // edit() returns null if the cached response is not current.
+      editor = when (body) {
+        is CacheResponseBody -> {
+          memoryRemove(body.snapshot.key())
+          body.snapshot.edit()
+        }
+        is MemoryCacheResponseBody -> {
+          memoryRemove(body.key)
+          cache.edit(body.key, body.sequenceNumber)
+        }
+        else -> null
+      } ?: return
       entry.writeTo(editor)
       editor.commit()
     } catch (_: IOException) {
@@ -263,6 +390,7 @@ class Cache internal constructor(
   @Throws(IOException::class)
   fun initialize() {
     cache.initialize()
+    requestCoalescer.initialize()
   }
 
   /**
@@ -271,6 +399,7 @@ class Cache internal constructor(
    */
   @Throws(IOException::class)
   fun delete() {
+    memoryEvictAll()
     cache.delete()
   }
 
@@ -280,6 +409,7 @@ class Cache internal constructor(
    */
   @Throws(IOException::class)
   fun evictAll() {
+    memoryEvictAll()
     cache.evictAll()
   }
 
@@ -351,6 +481,7 @@ class Cache internal constructor(
 
   @Throws(IOException::class)
   override fun close() {
+    memoryEvictAll()
     cache.close()
   }
 
@@ -379,7 +510,20 @@ class Cache internal constructor(
 
   @Synchronized fun requestCount(): Int = requestCount
 
+  /** Returns the number of responses that shared another call's network exchange. */
+  fun coalescedCount(): Int = requestCoalescer.coalescedCount()
+
+  /** Returns the number of cache reads that were served by the memory tier. */
+  @Synchronized fun memoryHitCount(): Int = memoryHitCount
+
+  /** Returns the number of bytes currently held by the memory tier. */
+  @Synchronized fun memorySize(): Long = memorySize
+
+  /** Max size of the memory tier (in bytes). Zero if the memory tier is disabled. */
+  fun memoryMaxSize(): Long = memoryMaxSize
+
   private inner class RealCacheRequest internal constructor(
+    private val key: String,
     private val editor: DiskLruCache.Editor
   ) : CacheRequest {
     private val cacheOut: Sink = editor.newSink(ENTRY_BODY)
@@ -397,6 +541,7 @@ class Cache internal constructor(
           }
           super.close()
           editor.commit()
+          memoryRemove(key)
         }
       }
     }
@@ -628,9 +773,25 @@ class Cache internal constructor(
           varyMatches(response, varyHeaders, request)
     }
 
+    /** The approximate number of bytes this entry holds in memory. */
+    val byteCount: Long
+      get() = url.length + varyHeaders.byteCount() + message.length +
+          responseHeaders.byteCount() + if (handshake != null) HANDSHAKE_BYTE_COUNT else 0L
+
     fun response(snapshot: DiskLruCache.Snapshot): Response {
       val contentType = responseHeaders["Content-Type"]
       val contentLength = responseHeaders["Content-Length"]
+      return response(CacheResponseBody(snapshot, contentType, contentLength))
+    }
+
+    fun response(key: String, sequenceNumber: Long, body: ByteString): Response {
+      val contentType = responseHeaders["Content-Type"]
+      val contentLength = responseHeaders["Content-Length"]
+      return response(
+          MemoryCacheResponseBody(key, sequenceNumber, body, contentType, contentLength))
+    }
+
+    private fun response(body: ResponseBody): Response {
       val cacheRequest = Request.Builder()
           .url(url)
           .method(requestMethod, null)
@@ -642,7 +803,7 @@ class Cache internal constructor(
           .code(code)
           .message(message)
           .headers(responseHeaders)
-          .body(CacheResponseBody(snapshot, contentType, contentLength))
+          .body(body)
           .handshake(handshake)
           .sentRequestAtMillis(sentRequestMillis)
           .receivedResponseAtMillis(receivedResponseMillis)
@@ -655,9 +816,38 @@ class Cache internal constructor(
 
       /** Synthetic response header: the local time when the response was received. */
       private val RECEIVED_MILLIS = "${Platform.get().getPrefix()}-Received-Millis"
+
+      /** A rough estimate of a decoded handshake's size, dominated by its certificates. */
+      private const val HANDSHAKE_BYTE_COUNT = 4096L
     }
   }
 
+  /** A response held by the memory tier, valid while the disk entry has [sequenceNumber]. */
+  private class MemoryEntry(
+    val entry: Entry,
+    val sequenceNumber: Long,
+    val body: ByteString
+  ) {
+    val byteCount: Long = entry.byteCount + body.size
+  }
+
+  /** A body served from the memory tier. Each response reads from its own buffer. */
+  private class MemoryCacheResponseBody(
+    internal val key: String,
+    internal val sequenceNumber: Long,
+    body: ByteString,
+    private val contentType: String?,
+    private val contentLength: String?
+  ) : ResponseBody() {
+    private val bodySource = Buffer().write(body)
+
+    override fun contentType(): MediaType? = contentType?.toMediaTypeOrNull()
+
+    override fun contentLength(): Long = contentLength?.toLongOrDefault(-1L) ?: -1L
+
+    override fun source(): BufferedSource = bodySource
+  }
+
   private class CacheResponseBody internal constructor(
     internal val snapshot: DiskLruCache.Snapshot,
     private val contentType: String?,
@@ -689,6 +879,9 @@ class Cache internal constructor(
     private const val ENTRY_BODY = 1
     private const val ENTRY_COUNT = 2
 
+    /** Larger bodies are always read from disk, even if the memory tier could hold them. */
+    private const val MEMORY_MAX_BODY_SIZE = 64L * 1024L
+
     @JvmStatic
     fun key(url: HttpUrl): String = url.toString().encodeUtf8().md5().hex()
 
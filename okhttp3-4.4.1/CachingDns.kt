@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3
+
+import java.net.InetAddress
+import java.net.UnknownHostException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import okhttp3.internal.concurrent.TaskRunner
+import okhttp3.internal.okHttpName
+
+/**
+ * A [Dns] that caches the results of [delegate] so that new routes don't block on resolution.
+ *
+ * Results are fresh for [ttl] after they are resolved. For a further [staleTtl] they are *stale*:
+ * lookups return them immediately and refresh the entry in the background. Once an entry is older
+ * than both it must be resolved again before it is returned.
+ *
+ * Concurrent lookups of a host that isn't cached share a single call to [delegate]. Failures are
+ * not cached, but a failed background refresh leaves the stale result in place.
+ *
+ * The delegate doesn't report record TTLs, so every entry uses the same configured [ttl]. Use the
+ * counters to measure how often lookups were served without waiting on [delegate].
+ */
+class CachingDns internal constructor(
+  private val delegate: Dns,
+  private val maxEntries: Int,
+  ttl: Long,
+  staleTtl: Long,
+  timeUnit: TimeUnit,
+  private val taskRunner: TaskRunner,
+  private val nanoTime: () -> Long
+) : Dns {
+  private val ttlNanos = timeUnit.toNanos(ttl)
+  private val staleTtlNanos = timeUnit.toNanos(staleTtl)
+
+  /** Cached results in access order so that the least recently used host is evicted first. */
+  private val entries = LinkedHashMap<String, Entry>(0, 0.75f, true)
+
+  private var hitCount = 0
+  private var staleHitCount = 0
+  private var missCount = 0
+
+  init {
+    require(maxEntries > 0) { "maxEntries <= 0: $maxEntries" }
+    require(ttl >= 0L) { "ttl < 0: $ttl" }
+    require(staleTtl >= 0L) { "staleTtl < 0: $staleTtl" }
+  }
+
+  @JvmOverloads constructor(
+    delegate: Dns = Dns.SYSTEM,
+    maxEntries: Int = 256,
+    ttl: Long = 60,
+    staleTtl: Long = 600,
+    timeUnit: TimeUnit = TimeUnit.SECONDS
+  ) : this(delegate, maxEntries, ttl, staleTtl, timeUnit, TaskRunner.INSTANCE, System::nanoTime)
+
+  @Throws(UnknownHostException::class)
+  override fun lookup(hostname: String): List<InetAddress> {
+    val lookup: Lookup
+    val startLookup: Boolean
+    synchronized(this) {
+      val now = nanoTime()
+      val entry = entries[hostname]
+      val addresses = entry?.addresses
+      if (entry != null && addresses != null) {
+        val ageNanos = now - entry.resolvedAtNs
+        if (ageNanos < ttlNanos) {
+          hitCount++
+          return addresses
+        }
+        if (ageNanos - ttlNanos < staleTtlNanos) {
+          staleHitCount++
+          if (entry.inFlight == null) refreshInBackground(entry)
+          return addresses
+        }
+      }
+
+      missCount++
+      val current = entries.getOrPut(hostname) { Entry(hostname) }
+      trimToSize()
+      val inFlight = current.inFlight
+      startLookup = inFlight == null
+      lookup = inFlight ?: Lookup().also { current.inFlight = it }
+    }
+
+    // Only one caller resolves the host, everyone else waits for it.
+    if (startLookup) resolve(hostname, lookup)
+    return lookup.await(hostname)
+  }
+
+  /**
+   * Resolves [hostnames] in the background, concurrently with one another, so that later lookups
+   * hit the cache. Hosts that are already fresh in the cache are skipped.
+   */
+  fun prefetch(hostnames: List<String>) {
+    synchronized(this) {
+      for (hostname in hostnames) {
+        val entry = entries.getOrPut(hostname) { Entry(hostname) }
+        val addresses = entry.addresses
+        if (addresses != null && nanoTime() - entry.resolvedAtNs < ttlNanos) continue
+        if (entry.inFlight == null) refreshInBackground(entry)
+      }
+      trimToSize()
+    }
+  }
+
+  /** Forgets every cached result. Lookups that are in flight complete normally. */
+  @Synchronized fun evictAll() {
+    entries.clear()
+  }
+
+  @Synchronized fun size(): Int = entries.size
+
+  /** Returns the number of lookups that returned a fresh cached result. */
+  @Synchronized fun hitCount(): Int = hitCount
+
+  /** Returns the number of lookups that returned a stale result while it was being refreshed. */
+  @Synchronized fun staleHitCount(): Int = staleHitCount
+
+  /** Returns the number of lookups that had to wait for [delegate]. */
+  @Synchronized fun missCount(): Int = missCount
+
+  private fun refreshInBackground(entry: Entry) {
+    val lookup = Lookup()
+    entry.inFlight = lookup
+    // Each refresh gets its own queue so that slow hosts don't delay the refresh of others.
+    taskRunner.newQueue().execute("$okHttpName DNS refresh ${entry.hostname}") {
+      resolve(entry.hostname, lookup)
+    }
+  }
+
+  private fun resolve(hostname: String, lookup: Lookup) {
+    var addresses: List<InetAddress>? = null
+    var failure: UnknownHostException? = null
+    try {
+      addresses = delegate.lookup(hostname)
+    } catch (e: UnknownHostException) {
+      failure = e
+    } finally {
+      // Waiters must be released even if the delegate throws something unexpected.
+      if (addresses == null && failure == null) {
+        failure = UnknownHostException("Broken dns lookup of $hostname")
+      }
+      synchronized(this) {
+        val entry = entries[hostname]
+        if (entry != null && entry.inFlight === lookup) {
+          if (addresses != null) {
+            entry.addresses = addresses
+            entry.resolvedAtNs = nanoTime()
+          }
+          entry.inFlight = null
+        }
+      }
+      lookup.complete(addresses, failure)
+    }
+  }
+
+  private fun trimToSize() {
+    val i = entries.values.iterator()
+    while (entries.size > maxEntries && i.hasNext()) {
+      i.next()
+      i.remove()
+    }
+  }
+
+  private class Entry(val hostname: String) {
+    /** The last successfully resolved addresses, or null if the host was never resolved. */
+    var addresses: List<InetAddress>? = null
+    var resolvedAtNs = 0L
+
+    /** The lookup that is currently resolving this host, if any. */
+    var inFlight: Lookup? = null
+  }
+
+  /** A single call to the delegate that any number of callers can wait on. */
+  private class Lookup {
+    private val latch = CountDownLatch(1)
+    private var addresses: List<InetAddress>? = null
+    private var failure: UnknownHostException? = null
+
+    fun complete(addresses: List<InetAddress>?, failure: UnknownHostException?) {
+      this.addresses = addresses
+      this.failure = failure
+      latch.countDown()
+    }
+
+    fun await(hostname: String): List<InetAddress> {
+      try {
+        latch.await()
+      } catch (e: InterruptedException) {
+        Thread.currentThread().interrupt()
+        throw UnknownHostException("interrupted resolving $hostname").apply { initCause(e) }
+      }
+      failure?.let { throw it }
+      return addresses!!
+    }
+  }
+}
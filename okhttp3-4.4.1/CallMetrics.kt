@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3
+
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * An [EventListener.Factory] that aggregates the events of every call into latency histograms for
+ * each [Phase], overall and for each host. It also counts calls, connection reuse, and body bytes.
+ *
+ * ```
+ * val metrics = CallMetrics()
+ * val client = OkHttpClient.Builder()
+ *     .eventListenerFactory(metrics)
+ *     .build()
+ *
+ * ...
+ *
+ * val snapshot = metrics.snapshot()
+ * println(snapshot.histogram(CallMetrics.Phase.CALL).valueAtPercentile(99.0))
+ * ```
+ *
+ * Recording is lock-free. Once a host's histograms exist, a call that reuses a pooled connection
+ * allocates only its listener. Calls that connect also track the start of each attempt.
+ * Histograms have log-linear buckets like HdrHistogram's: durations under 16 µs are exact and
+ * longer durations are bucketed to within 1/16 of their value.
+ *
+ * Each host gets its own histograms until there are [maxHosts] of them. Further hosts are
+ * aggregated under [OTHER_HOSTS].
+ */
+class CallMetrics internal constructor(
+  private val maxHosts: Int,
+  private val nanoTime: () -> Long
+) : EventListener.Factory {
+  private val allHosts = PhaseRecorders()
+  private val hosts = ConcurrentHashMap<String, PhaseRecorders>()
+
+  /** The number of hosts with their own histograms. Reserved before a host's entry is added. */
+  private val hostCount = AtomicInteger()
+
+  private val callCount = AtomicLong()
+  private val failedCallCount = AtomicLong()
+  private val newConnectionCount = AtomicLong()
+  private val reusedConnectionCount = AtomicLong()
+  private val requestBodyByteCount = AtomicLong()
+  private val responseBodyByteCount = AtomicLong()
+
+  init {
+    require(maxHosts >= 0) { "maxHosts < 0: $maxHosts" }
+  }
+
+  @JvmOverloads constructor(
+    maxHosts: Int = 64
+  ) : this(maxHosts, System::nanoTime)
+
+  override fun create(call: Call): EventListener = CallListener()
+
+  /** Returns the metrics recorded so far. Calls in flight continue to record into this. */
+  fun snapshot(): Snapshot {
+    return Snapshot(
+        callCount = callCount.get(),
+        failedCallCount = failedCallCount.get(),
+        newConnectionCount = newConnectionCount.get(),
+        reusedConnectionCount = reusedConnectionCount.get(),
+        requestBodyByteCount = requestBodyByteCount.get(),
+        responseBodyByteCount = responseBodyByteCount.get(),
+        phases = allHosts.snapshot(),
+        hostPhases = hosts.entries.associate { (host, recorders) -> host to recorders.snapshot() }
+    )
+  }
+
+  private fun recordersFor(host: String): PhaseRecorders {
+    hosts[host]?.let { return it }
+    val reserved = reserveHost()
+    val key = if (reserved) host else OTHER_HOSTS
+    if (!reserved) hosts[key]?.let { return it }
+
+    val created = PhaseRecorders()
+    val existing = hosts.putIfAbsent(key, created) ?: return created
+    if (reserved) hostCount.decrementAndGet() // Another call added this host first.
+    return existing
+  }
+
+  /** Returns true if another host may get its own histograms. */
+  private fun reserveHost(): Boolean {
+    while (true) {
+      val count = hostCount.get()
+      if (count >= maxHosts) return false
+      if (hostCount.compareAndSet(count, count + 1)) return true
+    }
+  }
+
+  /** The phases of a call that are timed. Each phase ends with the event that follows its name. */
+  enum class Phase {
+    /** From [EventListener.callStart] until [EventListener.callEnd] or the call fails. */
+    CALL,
+    /** From [EventListener.dnsStart] until [EventListener.dnsEnd]. */
+    DNS,
+    /** From [EventListener.connectStart] until [EventListener.connectEnd], including TLS. */
+    CONNECT,
+    /** From [EventListener.secureConnectStart] until [EventListener.secureConnectEnd]. */
+    SECURE_CONNECT,
+    /** From [EventListener.requestHeadersStart] until [EventListener.requestHeadersEnd]. */
+    REQUEST_HEADERS,
+    /** From [EventListener.requestBodyStart] until [EventListener.requestBodyEnd]. */
+    REQUEST_BODY,
+    /**
+     * From [EventListener.responseHeadersStart] until [EventListener.responseHeadersEnd]. This
+     * includes the time the server takes to respond.
+     */
+    RESPONSE_HEADERS,
+    /** From [EventListener.responseBodyStart] until [EventListener.responseBodyEnd]. */
+    RESPONSE_BODY
+  }
+
+  /**
+   * Tracks one call. Most events for a call are sequential, but with
+   * [fast fallback][OkHttpClient.Builder.fastFallback] several connect attempts run concurrently,
+   * each on its own thread. Connect timings are therefore kept per attempt, guarded by this.
+   */
+  private inner class CallListener : EventListener() {
+    private var recorders: PhaseRecorders? = null
+    private var callStartNs = 0L
+    private var dnsStartNs = 0L
+    private var requestHeadersStartNs = 0L
+    private var requestBodyStartNs = 0L
+    private var responseHeadersStartNs = 0L
+    private var responseBodyStartNs = 0L
+
+    /** Start times of connect attempts in flight, by their address. Created on first connect. */
+    private var connectStartNs: HashMap<InetSocketAddress, Long>? = null
+
+    /** Start times of TLS handshakes in flight, by their attempt's thread. Created on first use. */
+    private var secureConnectStartNs: HashMap<Thread, Long>? = null
+
+    /** True if this call connected since it last acquired a connection. Guarded by this. */
+    private var connected = false
+
+    private fun record(phase: Phase, startNs: Long) {
+      val micros = (nanoTime() - startNs) / 1_000L
+      allHosts.record(phase, micros)
+      recorders?.record(phase, micros)
+    }
+
+    override fun callStart(call: Call) {
+      callCount.incrementAndGet()
+      recorders = recordersFor(call.request().url.host)
+      callStartNs = nanoTime()
+    }
+
+    override fun dnsStart(call: Call, domainName: String) {
+      dnsStartNs = nanoTime()
+    }
+
+    override fun dnsEnd(call: Call, domainName: String, inetAddressList: List<InetAddress>) {
+      record(Phase.DNS, dnsStartNs)
+    }
+
+    override fun connectStart(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy) {
+      val now = nanoTime()
+      synchronized(this) {
+        val connectStartNs = this.connectStartNs
+            ?: HashMap<InetSocketAddress, Long>().also { this.connectStartNs = it }
+        connectStartNs[inetSocketAddress] = now
+      }
+    }
+
+    override fun secureConnectStart(call: Call) {
+      val now = nanoTime()
+      synchronized(this) {
+        val secureConnectStartNs = this.secureConnectStartNs
+            ?: HashMap<Thread, Long>().also { this.secureConnectStartNs = it }
+        secureConnectStartNs[Thread.currentThread()] = now
+      }
+    }
+
+    override fun secureConnectEnd(call: Call, handshake: Handshake?) {
+      val startNs = synchronized(this) {
+        secureConnectStartNs?.remove(Thread.currentThread())
+      } ?: return
+      record(Phase.SECURE_CONNECT, startNs)
+    }
+
+    override fun connectEnd(
+      call: Call,
+      inetSocketAddress: InetSocketAddress,
+      proxy: Proxy,
+      protocol: Protocol?
+    ) {
+      val startNs = synchronized(this) {
+        connected = true
+        connectStartNs?.remove(inetSocketAddress)
+      } ?: return
+      record(Phase.CONNECT, startNs)
+    }
+
+    override fun connectFailed(
+      call: Call,
+      inetSocketAddress: InetSocketAddress,
+      proxy: Proxy,
+      protocol: Protocol?,
+      ioe: IOException
+    ) {
+      synchronized(this) {
+        connectStartNs?.remove(inetSocketAddress)
+        secureConnectStartNs?.remove(Thread.currentThread())
+      }
+    }
+
+    override fun connectionAcquired(call: Call, connection: Connection) {
+      val wasConnected = synchronized(this) {
+        val result = connected
+        connected = false
+        result
+      }
+      val counter = if (wasConnected) newConnectionCount else reusedConnectionCount
+      counter.incrementAndGet()
+    }
+
+    override fun requestHeadersStart(call: Call) {
+      requestHeadersStartNs = nanoTime()
+    }
+
+    override fun requestHeadersEnd(call: Call, request: Request) {
+      record(Phase.REQUEST_HEADERS, requestHeadersStartNs)
+    }
+
+    override fun requestBodyStart(call: Call) {
+      requestBodyStartNs = nanoTime()
+    }
+
+    override fun requestBodyEnd(call: Call, byteCount: Long) {
+      record(Phase.REQUEST_BODY, requestBodyStartNs)
+      requestBodyByteCount.addAndGet(byteCount)
+    }
+
+    override fun responseHeadersStart(call: Call) {
+      responseHeadersStartNs = nanoTime()
+    }
+
+    override fun responseHeadersEnd(call: Call, response: Response) {
+      record(Phase.RESPONSE_HEADERS, responseHeadersStartNs)
+    }
+
+    override fun responseBodyStart(call: Call) {
+      responseBodyStartNs = nanoTime()
+    }
+
+    override fun responseBodyEnd(call: Call, byteCount: Long) {
+      record(Phase.RESPONSE_BODY, responseBodyStartNs)
+      responseBodyByteCount.addAndGet(byteCount)
+    }
+
+    override fun callEnd(call: Call) {
+      record(Phase.CALL, callStartNs)
+    }
+
+    override fun callFailed(call: Call, ioe: IOException) {
+      record(Phase.CALL, callStartNs)
+      failedCallCount.incrementAndGet()
+    }
+  }
+
+  /** A histogram for each phase, created when the phase is first recorded. */
+  private class PhaseRecorders {
+    private val recorders = AtomicReferenceArray<Recorder?>(Phase.values().size)
+
+    fun record(phase: Phase, micros: Long) {
+      val index = phase.ordinal
+      val recorder = recorders[index] ?: run {
+        recorders.compareAndSet(index, null, Recorder())
+        recorders[index]!!
+      }
+      recorder.record(micros)
+    }
+
+    fun snapshot(): Map<Phase, Histogram> {
+      val result = mutableMapOf<Phase, Histogram>()
+      for (phase in Phase.values()) {
+        val recorder = recorders[phase.ordinal] ?: continue
+        result[phase] = recorder.snapshot()
+      }
+      return result
+    }
+  }
+
+  /** Records durations into log-linear buckets with atomic counters. */
+  private class Recorder {
+    private val counts = AtomicLongArray(BUCKET_COUNT)
+    private val sumMicros = AtomicLong()
+    private val maxMicros = AtomicLong()
+
+    fun record(micros: Long) {
+      val value = micros.coerceIn(0L, MAX_MICROS)
+      counts.incrementAndGet(bucketIndex(value))
+      sumMicros.addAndGet(value)
+      while (true) {
+        val max = maxMicros.get()
+        if (value <= max || maxMicros.compareAndSet(max, value)) break
+      }
+    }
+
+    fun snapshot(): Histogram {
+      val counts = LongArray(BUCKET_COUNT) { counts.get(it) }
+      return Histogram(counts, counts.sum(), sumMicros.get(), maxMicros.get())
+    }
+  }
+
+  /** An immutable histogram of durations, in microseconds. */
+  class Histogram internal constructor(
+    private val counts: LongArray,
+    /** The number of recorded durations. */
+    @get:JvmName("count") val count: Long,
+    /** The sum of recorded durations. */
+    @get:JvmName("sumMicros") val sumMicros: Long,
+    /** The longest recorded duration. */
+    @get:JvmName("maxMicros") val maxMicros: Long
+  ) {
+    /** The mean duration, or 0 if nothing was recorded. */
+    val meanMicros: Double
+      @JvmName("meanMicros") get() = if (count == 0L) 0.0 else sumMicros.toDouble() / count
+
+    /**
+     * Returns the duration that [percentile] percent of recorded durations are at or below, like
+     * 99.0 for the 99th percentile. The result is the upper bound of its bucket, but never more
+     * than [maxMicros]. Returns 0 if nothing was recorded.
+     */
+    fun valueAtPercentile(percentile: Double): Long {
+      require(percentile in 0.0..100.0) { "percentile not in 0..100: $percentile" }
+      if (count == 0L) return 0L
+      val rank = maxOf(1L, Math.ceil(percentile / 100.0 * count).toLong())
+      var seen = 0L
+      for (i in counts.indices) {
+        seen += counts[i]
+        if (seen >= rank) return minOf(bucketUpperBound(i), maxMicros)
+      }
+      return maxMicros
+    }
+
+    override fun toString(): String {
+      return "count=$count mean=${meanMicros.toLong()}us p50=${valueAtPercentile(50.0)}us " +
+          "p90=${valueAtPercentile(90.0)}us p99=${valueAtPercentile(99.0)}us max=${maxMicros}us"
+    }
+  }
+
+  class Snapshot internal constructor(
+    @get:JvmName("callCount") val callCount: Long,
+    @get:JvmName("failedCallCount") val failedCallCount: Long,
+    /** Connections acquired by calls that had just connected them. */
+    @get:JvmName("newConnectionCount") val newConnectionCount: Long,
+    /** Connections acquired from the pool, or another call, without connecting. */
+    @get:JvmName("reusedConnectionCount") val reusedConnectionCount: Long,
+    @get:JvmName("requestBodyByteCount") val requestBodyByteCount: Long,
+    @get:JvmName("responseBodyByteCount") val responseBodyByteCount: Long,
+    private val phases: Map<Phase, Histogram>,
+    private val hostPhases: Map<String, Map<Phase, Histogram>>
+  ) {
+    /** The fraction of acquired connections that were reused, or 0 if there were none. */
+    val connectionReuseRatio: Double
+      @JvmName("connectionReuseRatio") get() {
+        val acquired = newConnectionCount + reusedConnectionCount
+        return if (acquired == 0L) 0.0 else reusedConnectionCount.toDouble() / acquired
+      }
+
+    /** The hosts that have their own histograms, possibly including [OTHER_HOSTS]. */
+    val hosts: Set<String>
+      @JvmName("hosts") get() = hostPhases.keys
+
+    /** Returns the histogram of [phase] across all hosts. */
+    fun histogram(phase: Phase): Histogram = phases[phase] ?: EMPTY_HISTOGRAM
+
+    /** Returns the histogram of [phase] for [host]. */
+    fun histogram(host: String, phase: Phase): Histogram =
+        hostPhases[host]?.get(phase) ?: EMPTY_HISTOGRAM
+
+    /** Writes these metrics as text, one line per counter and per non-empty histogram. */
+    @Throws(IOException::class)
+    fun writeTo(out: Appendable) {
+      out.append("calls ").append(callCount.toString())
+          .append(" failed=").append(failedCallCount.toString()).append('\n')
+      out.append("connections new=").append(newConnectionCount.toString())
+          .append(" reused=").append(reusedConnectionCount.toString()).append('\n')
+      out.append("bytes request=").append(requestBodyByteCount.toString())
+          .append(" response=").append(responseBodyByteCount.toString()).append('\n')
+      writeHistograms(out, "*", phases)
+      for ((host, histograms) in hostPhases.entries.sortedBy { it.key }) {
+        writeHistograms(out, host, histograms)
+      }
+    }
+
+    private fun writeHistograms(out: Appendable, host: String, histograms: Map<Phase, Histogram>) {
+      for ((phase, histogram) in histograms) {
+        out.append(phase.name).append(' ').append(host).append(' ')
+            .append(histogram.toString()).append('\n')
+      }
+    }
+
+    override fun toString(): String = StringBuilder().also { writeTo(it) }.toString()
+  }
+
+  companion object {
+    /** The host that aggregates calls to hosts beyond the limit. */
+    const val OTHER_HOSTS = "*other*"
+
+    /** Buckets hold 2^SUB_BUCKET_BITS values below that many, and 1/16 of each power of 2. */
+    private const val SUB_BUCKET_BITS = 4
+    private const val SUB_BUCKET_COUNT = 1 shl SUB_BUCKET_BITS
+
+    /** About 19 hours. Longer durations are recorded as this. */
+    private const val MAX_MICROS = (1L shl 36) - 1L
+
+    private const val BUCKET_COUNT = SUB_BUCKET_COUNT + (36 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT
+
+    private val EMPTY_HISTOGRAM = Histogram(LongArray(BUCKET_COUNT), 0L, 0L, 0L)
+
+    private fun bucketIndex(value: Long): Int {
+      if (value < SUB_BUCKET_COUNT) return value.toInt()
+      val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+      val shift = exponent - SUB_BUCKET_BITS
+      val subBucket = (value ushr shift).toInt() - SUB_BUCKET_COUNT
+      return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket
+    }
+
+    private fun bucketUpperBound(index: Int): Long {
+      if (index < SUB_BUCKET_COUNT) return index.toLong()
+      val shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT
+      val subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT
+      val lowerBound = (SUB_BUCKET_COUNT + subBucket).toLong() shl shift
+      return lowerBound + (1L shl shift) - 1L
+    }
+  }
+}
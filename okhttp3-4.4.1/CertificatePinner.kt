@@ -136,6 +136,15 @@ class CertificatePinner internal constructor(
   private val pins: Set<Pin>,
   internal val certificateChainCleaner: CertificateChainCleaner?
 ) {
+  /**
+   * Peer chains that recently satisfied the pins of a host, in access order. Reconnecting to a host
+   * with the same chain skips cleaning and hashing it again. Guarded by this.
+   */
+  private val verifiedChains = object : LinkedHashMap<VerifiedChain, Unit>(0, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<VerifiedChain, Unit>?) =
+        size > MAX_VERIFIED_CHAINS
+  }
+
   /**
    * Confirms that at least one of the certificates pinned for `hostname` is in `peerCertificates`.
    * Does nothing if there are no certificates pinned for `hostname`. OkHttp calls this after a
@@ -146,16 +155,30 @@ class CertificatePinner internal constructor(
    */
   @Throws(SSLPeerUnverifiedException::class)
   fun check(hostname: String, peerCertificates: List<Certificate>) {
-    return check(hostname) {
+    return check(hostname, peerCertificates) {
       (certificateChainCleaner?.clean(peerCertificates, hostname) ?: peerCertificates)
           .map { it as X509Certificate }
     }
   }
 
-  internal fun check(hostname: String, cleanedPeerCertificatesFn: () -> List<X509Certificate>) {
+  /**
+   * Confirms the pins for [hostname] against the chain returned by [cleanedPeerCertificatesFn],
+   * which is the cleaned form of [unverifiedPeerCertificates] as presented by the peer.
+   */
+  internal fun check(
+    hostname: String,
+    unverifiedPeerCertificates: List<Certificate>,
+    cleanedPeerCertificatesFn: () -> List<X509Certificate>
+  ) {
     val pins = findMatchingPins(hostname)
     if (pins.isEmpty()) return
 
+    val verifiedChain = VerifiedChain(hostname,
+        unverifiedPeerCertificates.map { it.encoded.toByteString() })
+    synchronized(this) {
+      if (verifiedChains[verifiedChain] != null) return // Success!
+    }
+
     val peerCertificates = cleanedPeerCertificatesFn()
 
     for (peerCertificate in peerCertificates) {
@@ -167,11 +190,11 @@ class CertificatePinner internal constructor(
         when (pin.hashAlgorithm) {
           "sha256/" -> {
             if (sha256 == null) sha256 = peerCertificate.toSha256ByteString()
-            if (pin.hash == sha256) return // Success!
+            if (pin.hash == sha256) return verified(verifiedChain) // Success!
           }
           "sha1/" -> {
             if (sha1 == null) sha1 = peerCertificate.toSha1ByteString()
-            if (pin.hash == sha1) return // Success!
+            if (pin.hash == sha1) return verified(verifiedChain) // Success!
           }
           else -> throw AssertionError("unsupported hashAlgorithm: ${pin.hashAlgorithm}")
         }
@@ -205,6 +228,12 @@ class CertificatePinner internal constructor(
     check(hostname, peerCertificates.toList())
   }
 
+  private fun verified(verifiedChain: VerifiedChain) {
+    synchronized(this) {
+      verifiedChains[verifiedChain] = Unit
+    }
+  }
+
   /**
    * Returns list of matching certificates' pins for the hostname. Returns an empty list if the
    * hostname does not have pinned certificates.
@@ -244,6 +273,12 @@ class CertificatePinner internal constructor(
     return result
   }
 
+  /** A chain of encoded certificates as presented by [hostname]. */
+  private data class VerifiedChain(
+    val hostname: String,
+    val encodedCertificates: List<ByteString>
+  )
+
   internal data class Pin(
     /** A hostname like `example.com` or a pattern like `*.example.com` (canonical form). */
     private val pattern: String,
@@ -299,6 +334,8 @@ class CertificatePinner internal constructor(
     @JvmField
     val DEFAULT = Builder().build()
 
+    private const val MAX_VERIFIED_CHAINS = 64
+
     /**
      * Returns the SHA-256 of `certificate`'s public key.
      *
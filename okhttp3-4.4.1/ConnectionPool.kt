@@ -19,6 +19,7 @@ package okhttp3
 import java.util.concurrent.TimeUnit
 import okhttp3.internal.concurrent.TaskRunner
 import okhttp3.internal.connection.RealConnectionPool
+import okhttp3.internal.http2.BodyBufferBudget
 
 /**
  * Manages reuse of HTTP and HTTP/2 connections for reduced network latency. HTTP requests that
@@ -44,6 +45,27 @@ class ConnectionPool internal constructor(
       timeUnit = timeUnit
   ))
 
+  /**
+   * Create a new connection pool that also bounds response body data buffered by its HTTP/2
+   * connections. Once the application has left [maxBufferedBodyBytes] received but unread across
+   * all streams, streams stop granting servers more flow-control window until it reads some.
+   *
+   * Only connections in such a pool grow their receive windows on fast, high-latency links. Their
+   * combined growth beyond the initial windows is limited to [maxBufferedBodyBytes].
+   */
+  constructor(
+    maxIdleConnections: Int,
+    keepAliveDuration: Long,
+    timeUnit: TimeUnit,
+    maxBufferedBodyBytes: Long
+  ) : this(RealConnectionPool(
+      taskRunner = TaskRunner.INSTANCE,
+      maxIdleConnections = maxIdleConnections,
+      keepAliveDuration = keepAliveDuration,
+      timeUnit = timeUnit,
+      bodyBufferBudget = BodyBufferBudget(maxBufferedBodyBytes)
+  ))
+
   constructor() : this(5, 5, TimeUnit.MINUTES)
 
   /** Returns the number of idle connections in the pool. */
@@ -52,7 +74,43 @@ class ConnectionPool internal constructor(
   /** Returns total number of connections in the pool. */
   fun connectionCount(): Int = delegate.connectionCount()
 
-  /** Close and remove all idle connections in the pool. */
+  /** Returns the number of received HTTP/2 response body bytes not yet read by the application. */
+  fun bufferedBodyByteCount(): Long = delegate.bodyBufferBudget.bufferedByteCount()
+
+  /** Returns the largest value [bufferedBodyByteCount] has had. */
+  fun peakBufferedBodyByteCount(): Long = delegate.bodyBufferBudget.peakBufferedByteCount()
+
+  /**
+   * Returns the number of times a call was served by a connection that was opened by [prewarm]
+   * rather than on demand.
+   */
+  fun prewarmedConnectionUseCount(): Int = delegate.prewarmedConnectionUseCount()
+
+  /**
+   * Opens connections to the origin of [url] in the background so that the first calls to it
+   * don't wait for DNS, TCP and TLS handshakes. Connections are added until this pool holds
+   * [connectionCount] idle connections to the origin, configured by [client] which must use this
+   * pool.
+   *
+   * If [keepWarm] is true the pool keeps at least [connectionCount] idle connections to the
+   * origin, exempting them from the keep alive duration and replacing connections that close.
+   * Calling this again with [keepWarm] false stops keeping the origin warm, and [evictAll] cancels
+   * all prewarming.
+   */
+  @JvmOverloads
+  fun prewarm(
+    client: OkHttpClient,
+    url: HttpUrl,
+    connectionCount: Int = 1,
+    keepWarm: Boolean = false
+  ) {
+    delegate.prewarm(client, url, connectionCount, keepWarm)
+  }
+
+  /**
+   * Close and remove all idle connections in the pool. This also cancels connections that are being
+   * opened by [prewarm] and stops keeping origins warm.
+   */
   fun evictAll() {
     delegate.evictAll()
   }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3
+
+import java.io.IOException
+import java.io.InputStream
+import java.lang.reflect.Constructor
+import java.lang.reflect.InvocationTargetException
+import java.util.zip.Inflater
+import okhttp3.internal.and
+import okio.Buffer
+import okio.BufferedSource
+import okio.GzipSource
+import okio.InflaterSource
+import okio.Source
+import okio.Timeout
+import okio.source
+
+/**
+ * Decodes response bodies that were compressed with a content coding, like `gzip`.
+ *
+ * A client advertises the encodings of its [content decoders][OkHttpClient.Builder.contentDecoders]
+ * in the `Accept-Encoding` header of requests that don't set their own. It transparently decodes
+ * responses that use them. Decoding streams: the body is decoded as the application reads it.
+ */
+interface ContentDecoder {
+  /** The content coding token, like `gzip` or `br`. It is matched case-insensitively. */
+  val encoding: String
+
+  /** Returns a source that reads the decoded form of [source]. */
+  @Throws(IOException::class)
+  fun decode(source: BufferedSource): Source
+
+  companion object {
+    /** Decodes `gzip`. This is the only decoder that clients use by default. */
+    @JvmField
+    val GZIP: ContentDecoder = object : ContentDecoder {
+      override val encoding = "gzip"
+
+      override fun decode(source: BufferedSource): Source = GzipSource(source)
+
+      override fun toString() = encoding
+    }
+
+    /**
+     * Decodes `deflate`. The coding is specified as zlib-wrapped deflate data, but some servers
+     * send raw deflate data instead. This decoder accepts both by checking for a zlib header.
+     */
+    @JvmField
+    val DEFLATE: ContentDecoder = object : ContentDecoder {
+      override val encoding = "deflate"
+
+      override fun decode(source: BufferedSource): Source = DeferredSource(source) {
+        val zlibWrapped = source.request(2) && isZlibHeader(source.buffer[0], source.buffer[1])
+        InflaterSource(source, Inflater(!zlibWrapped))
+      }
+
+      override fun toString() = encoding
+    }
+
+    /**
+     * Returns a decoder for `br` that uses the pure-Java decoder of the `org.brotli:dec` library,
+     * or null if that library isn't on the classpath.
+     */
+    @JvmStatic
+    fun brotli(): ContentDecoder? {
+      val constructor = brotliInputStreamConstructor ?: return null
+      return object : ContentDecoder {
+        override val encoding = "br"
+
+        override fun decode(source: BufferedSource): Source = DeferredSource(source) {
+          // The decoder reads the stream header as soon as it is created.
+          val decoded = try {
+            constructor.newInstance(source.inputStream()) as InputStream
+          } catch (e: InvocationTargetException) {
+            throw e.targetException as? IOException ?: IOException(e.targetException)
+          } catch (e: ReflectiveOperationException) {
+            throw IOException("unable to decode brotli", e)
+          }
+          decoded.source()
+        }
+
+        override fun toString() = encoding
+      }
+    }
+
+    /** Returns true if [cmf] and [flg] start a zlib stream of deflate data. See RFC 1950. */
+    private fun isZlibHeader(cmf: Byte, flg: Byte): Boolean {
+      return cmf and 0x0f == 8 && ((cmf and 0xff) * 256 + (flg and 0xff)) % 31 == 0
+    }
+  }
+}
+
+/** The constructor of `org.brotli.dec.BrotliInputStream`, or null if it isn't available. */
+private val brotliInputStreamConstructor: Constructor<*>? by lazy {
+  try {
+    Class.forName("org.brotli.dec.BrotliInputStream").getConstructor(InputStream::class.java)
+  } catch (_: ReflectiveOperationException) {
+    null
+  }
+}
+
+/**
+ * A source that creates its decoding source with [open] on the first read. Decoders that inspect
+ * the start of the body do so as the application reads it, so the response headers aren't held up
+ * waiting for the body and I/O errors surface from the body rather than from the call.
+ */
+private class DeferredSource(
+  private val source: BufferedSource,
+  private val open: () -> Source
+) : Source {
+  private var decoded: Source? = null
+
+  override fun read(sink: Buffer, byteCount: Long): Long {
+    val decoded = this.decoded ?: open().also { this.decoded = it }
+    return decoded.read(sink, byteCount)
+  }
+
+  override fun timeout(): Timeout = source.timeout()
+
+  override fun close() {
+    val decoded = this.decoded
+    if (decoded != null) decoded.close() else source.close()
+  }
+}
@@ -19,14 +19,14 @@ import java.util.Calendar
 import java.util.Collections
 import java.util.Date
 import java.util.GregorianCalendar
-import java.util.Locale
-import java.util.regex.Pattern
 import okhttp3.internal.UTC
 import okhttp3.internal.canParseAsIpAddress
 import okhttp3.internal.delimiterOffset
 import okhttp3.internal.http.MAX_DATE
 import okhttp3.internal.http.toHttpDateString
 import okhttp3.internal.indexOfControlOrNonAscii
+import okhttp3.internal.indexOfFirstNonAsciiWhitespace
+import okhttp3.internal.indexOfLastNonAsciiWhitespace
 import okhttp3.internal.publicsuffix.PublicSuffixDatabase
 import okhttp3.internal.toCanonicalHost
 import okhttp3.internal.trimSubstring
@@ -265,11 +265,8 @@ class Cookie private constructor(
 
   @Suppress("NAME_SHADOWING")
   companion object {
-    private val YEAR_PATTERN = Pattern.compile("(\\d{2,4})[^\\d]*")
-    private val MONTH_PATTERN =
-        Pattern.compile("(?i)(jan|feb|mar|apr|may|jun|jul|aug|sep|oct|nov|dec).*")
-    private val DAY_OF_MONTH_PATTERN = Pattern.compile("(\\d{1,2})[^\\d]*")
-    private val TIME_PATTERN = Pattern.compile("(\\d{1,2}):(\\d{1,2}):(\\d{1,2})[^\\d]*")
+    /** Lowercase month abbreviations, three characters each. */
+    private const val MONTHS = "janfebmaraprmayjunjulaugsepoctnovdec"
 
     private fun domainMatch(urlHost: String, domain: String): Boolean {
       if (urlHost == domain) {
@@ -330,46 +327,46 @@ class Cookie private constructor(
       while (pos < limit) {
         val attributePairEnd = setCookie.delimiterOffset(';', pos, limit)
 
+        // Attributes are compared and parsed in place. Only the values we keep become strings.
         val attributeEqualsSign = setCookie.delimiterOffset('=', pos, attributePairEnd)
-        val attributeName = setCookie.trimSubstring(pos, attributeEqualsSign)
-        val attributeValue = if (attributeEqualsSign < attributePairEnd) {
-          setCookie.trimSubstring(attributeEqualsSign + 1, attributePairEnd)
-        } else {
-          ""
-        }
+        val nameStart = setCookie.indexOfFirstNonAsciiWhitespace(pos, attributeEqualsSign)
+        val nameEnd = setCookie.indexOfLastNonAsciiWhitespace(nameStart, attributeEqualsSign)
+        val valueStart = setCookie.indexOfFirstNonAsciiWhitespace(
+            minOf(attributeEqualsSign + 1, attributePairEnd), attributePairEnd)
+        val valueEnd = setCookie.indexOfLastNonAsciiWhitespace(valueStart, attributePairEnd)
 
         when {
-          attributeName.equals("expires", ignoreCase = true) -> {
+          setCookie.regionIs(nameStart, nameEnd, "expires") -> {
             try {
-              expiresAt = parseExpires(attributeValue, 0, attributeValue.length)
+              expiresAt = parseExpires(setCookie, valueStart, valueEnd)
               persistent = true
             } catch (_: IllegalArgumentException) {
               // Ignore this attribute, it isn't recognizable as a date.
             }
           }
-          attributeName.equals("max-age", ignoreCase = true) -> {
+          setCookie.regionIs(nameStart, nameEnd, "max-age") -> {
             try {
-              deltaSeconds = parseMaxAge(attributeValue)
+              deltaSeconds = parseMaxAge(setCookie, valueStart, valueEnd)
               persistent = true
             } catch (_: NumberFormatException) {
               // Ignore this attribute, it isn't recognizable as a max age.
             }
           }
-          attributeName.equals("domain", ignoreCase = true) -> {
+          setCookie.regionIs(nameStart, nameEnd, "domain") -> {
             try {
-              domain = parseDomain(attributeValue)
+              domain = parseDomain(setCookie.substring(valueStart, valueEnd))
               hostOnly = false
             } catch (_: IllegalArgumentException) {
               // Ignore this attribute, it isn't recognizable as a domain.
             }
           }
-          attributeName.equals("path", ignoreCase = true) -> {
-            path = attributeValue
+          setCookie.regionIs(nameStart, nameEnd, "path") -> {
+            path = setCookie.substring(valueStart, valueEnd)
           }
-          attributeName.equals("secure", ignoreCase = true) -> {
+          setCookie.regionIs(nameStart, nameEnd, "secure") -> {
             secureOnly = true
           }
-          attributeName.equals("httponly", ignoreCase = true) -> {
+          setCookie.regionIs(nameStart, nameEnd, "httponly") -> {
             httpOnly = true
           }
         }
@@ -430,27 +427,29 @@ class Cookie private constructor(
       var dayOfMonth = -1
       var month = -1
       var year = -1
-      val matcher = TIME_PATTERN.matcher(s)
 
       while (pos < limit) {
         val end = dateCharacterOffset(s, pos + 1, limit, true)
-        matcher.region(pos, end)
 
+        // Each token is tried as a time, day of month, month, and year, in that order. Trailing
+        // non-digits are permitted after the numeric productions, as in '12th'.
+        val digits = digitCount(s, pos, end)
         when {
-          hour == -1 && matcher.usePattern(TIME_PATTERN).matches() -> {
-            hour = matcher.group(1).toInt()
-            minute = matcher.group(2).toInt()
-            second = matcher.group(3).toInt()
+          hour == -1 && isTime(s, pos, end) -> {
+            val minuteStart = pos + digits + 1
+            val secondStart = minuteStart + digitCount(s, minuteStart, end) + 1
+            hour = parseDigits(s, pos, pos + digits)
+            minute = parseDigits(s, minuteStart, secondStart - 1)
+            second = parseDigits(s, secondStart, secondStart + digitCount(s, secondStart, end))
           }
-          dayOfMonth == -1 && matcher.usePattern(DAY_OF_MONTH_PATTERN).matches() -> {
-            dayOfMonth = matcher.group(1).toInt()
+          dayOfMonth == -1 && digits in 1..2 && hasNoDigits(s, pos + digits, end) -> {
+            dayOfMonth = parseDigits(s, pos, pos + digits)
           }
-          month == -1 && matcher.usePattern(MONTH_PATTERN).matches() -> {
-            val monthString = matcher.group(1).toLowerCase(Locale.US)
-            month = MONTH_PATTERN.pattern().indexOf(monthString) / 4 // Sneaky! jan=1, dec=12.
+          month == -1 && parseMonth(s, pos, end) != -1 -> {
+            month = parseMonth(s, pos, end)
           }
-          year == -1 && matcher.usePattern(YEAR_PATTERN).matches() -> {
-            year = matcher.group(1).toInt()
+          year == -1 && digits in 2..4 && hasNoDigits(s, pos + digits, end) -> {
+            year = parseDigits(s, pos, pos + digits)
           }
         }
 
@@ -500,23 +499,94 @@ class Cookie private constructor(
       return limit
     }
 
+    /** Returns the number of ASCII digits in [s] starting at [pos]. */
+    private fun digitCount(s: String, pos: Int, limit: Int): Int {
+      var i = pos
+      while (i < limit && s[i] in '0'..'9') i++
+      return i - pos
+    }
+
+    private fun hasNoDigits(s: String, pos: Int, limit: Int): Boolean {
+      for (i in pos until limit) {
+        if (s[i] in '0'..'9') return false
+      }
+      return true
+    }
+
+    /** Returns the value of the ASCII digits in `s[pos..limit)`, which must not overflow. */
+    private fun parseDigits(s: String, pos: Int, limit: Int): Int {
+      var result = 0
+      for (i in pos until limit) {
+        result = result * 10 + (s[i] - '0')
+      }
+      return result
+    }
+
     /**
-     * Returns the positive value if [s] is positive, or [Long.MIN_VALUE] if it is either 0 or
-     * negative. If the value is positive but out of range, this returns [Long.MAX_VALUE].
+     * Returns true if the region starts with a time like `23:59:59`. Each field has one or two
+     * digits, and the time may only be followed by non-digits.
+     */
+    private fun isTime(s: String, pos: Int, limit: Int): Boolean {
+      var i = pos
+      for (field in 0 until 3) {
+        if (field > 0) {
+          if (i == limit || s[i] != ':') return false
+          i++
+        }
+        val digits = digitCount(s, i, limit)
+        if (digits !in 1..2) return false
+        i += digits
+      }
+      return hasNoDigits(s, i, limit)
+    }
+
+    /** Returns the month, 1 through 12, whose abbreviation starts this region, or -1 if none. */
+    private fun parseMonth(s: String, pos: Int, limit: Int): Int {
+      if (limit - pos < 3) return -1
+      for (month in 0 until 12) {
+        var i = 0
+        while (i < 3 && s[pos + i].toAsciiLowerCase() == MONTHS[month * 3 + i]) i++
+        if (i == 3) return month + 1
+      }
+      return -1
+    }
+
+    private fun Char.toAsciiLowerCase(): Char = if (this in 'A'..'Z') this + ('a' - 'A') else this
+
+    /** Returns true if `this[start..end)` is [name], ignoring ASCII case. */
+    private fun String.regionIs(start: Int, end: Int, name: String): Boolean {
+      if (end - start != name.length) return false
+      for (i in name.indices) {
+        if (this[start + i].toAsciiLowerCase() != name[i]) return false
+      }
+      return true
+    }
+
+    /**
+     * Returns the positive value of `s[pos..limit)` if it is positive, or [Long.MIN_VALUE] if it is
+     * either 0 or negative. If the value is positive but out of range, this returns
+     * [Long.MAX_VALUE].
      *
-     * @throws NumberFormatException if [s] is not an integer of any precision.
+     * @throws NumberFormatException if the region is not an integer of any precision.
      */
-    private fun parseMaxAge(s: String): Long {
-      try {
-        val parsed = s.toLong()
-        return if (parsed <= 0L) Long.MIN_VALUE else parsed
-      } catch (e: NumberFormatException) {
-        // Check if the value is an integer (positive or negative) that's too big for a long.
-        if (s.matches("-?\\d+".toRegex())) {
-          return if (s.startsWith("-")) Long.MIN_VALUE else Long.MAX_VALUE
+    private fun parseMaxAge(s: String, pos: Int, limit: Int): Long {
+      var i = pos
+      val negative = i < limit && s[i] == '-'
+      if (negative || i < limit && s[i] == '+') i++
+      if (i == limit || digitCount(s, i, limit) != limit - i) {
+        throw NumberFormatException("not an integer: ${s.substring(pos, limit)}")
+      }
+
+      var result = 0L
+      while (i < limit) {
+        val digit = s[i++] - '0'
+        if (result > (Long.MAX_VALUE - digit) / 10) {
+          result = Long.MAX_VALUE // Too big for a long.
+          break
         }
-        throw e
+        result = result * 10 + digit
       }
+      return if (negative || result == 0L) Long.MIN_VALUE else result
     }
 
     /**
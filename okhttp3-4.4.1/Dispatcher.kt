@@ -17,16 +17,18 @@ package okhttp3
 
 import java.util.ArrayDeque
 import java.util.Collections
-import java.util.Deque
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.SynchronousQueue
 import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import okhttp3.internal.assertThreadDoesntHoldLock
 import okhttp3.internal.connection.RealCall
 import okhttp3.internal.connection.RealCall.AsyncCall
 import okhttp3.internal.okHttpName
 import okhttp3.internal.threadFactory
+import okhttp3.internal.virtualThreadExecutor
+import okhttp3.internal.virtualThreadsByDefault
 
 /**
  * Policy on when async requests are executed.
@@ -67,6 +69,7 @@ class Dispatcher constructor() {
       require(maxRequestsPerHost >= 1) { "max < 1: $maxRequestsPerHost" }
       synchronized(this) {
         field = maxRequestsPerHost
+        recomputeEligibleHosts()
       }
       promoteAndExecute()
     }
@@ -86,11 +89,35 @@ class Dispatcher constructor() {
   @get:Synchronized
   var idleCallback: Runnable? = null
 
+  /**
+   * True to run asynchronous calls on virtual threads if the JVM has them (Java 21+). A call that
+   * blocks on the network then holds a virtual thread rather than a platform thread, so
+   * [maxRequests] can be raised well beyond the number of threads the process could otherwise
+   * afford. Calls are still admitted according to [maxRequests] and [maxRequestsPerHost].
+   *
+   * This mostly helps HTTP/1 calls, which block in socket reads and writes. HTTP/2 calls wait for
+   * stream data and flow control windows with `Object.wait()` inside `synchronized` blocks. Before
+   * Java 24 that pins the virtual thread to its carrier thread, so each waiting HTTP/2 call still
+   * occupies one of the few carrier threads. Many long-polling HTTP/2 calls can then stall the
+   * virtual thread scheduler. Keep [maxRequests] near the number of carrier threads for such
+   * workloads, or use Java 24 or newer.
+   *
+   * This only applies to the executor service this dispatcher creates itself, so it must be set
+   * before the first call is enqueued. It defaults to the `okhttp.virtualThreads` system property.
+   */
+  @set:Synchronized
+  @get:Synchronized
+  var virtualThreads: Boolean = virtualThreadsByDefault
+
   private var executorServiceOrNull: ExecutorService? = null
 
   @get:Synchronized
   @get:JvmName("executorService") val executorService: ExecutorService
     get() {
+      if (executorServiceOrNull == null && virtualThreads) {
+        // 每个call一个虚拟线程 JVM不支持时退回线程池
+        executorServiceOrNull = virtualThreadExecutor("$okHttpName Dispatcher")
+      }
       if (executorServiceOrNull == null) {
         // 使用线程池 类似 CachedThreadPool
         // 特点 1.没有核心线程 2.根据需要创建线程，会复用之前的线程 
@@ -101,14 +128,26 @@ class Dispatcher constructor() {
       return executorServiceOrNull!!
     }
 
-  /** Ready async calls in the order they'll be run. */
-  private val readyAsyncCalls = ArrayDeque<AsyncCall>()
+  /**
+   * Ready async calls, grouped by host. Each host's calls run in the order they were enqueued.
+   * Entries are removed once a host has no ready and no running calls.
+   */
+  private val readyCallsByHost = HashMap<String, HostQueue>()
+
+  /**
+   * Hosts that have ready calls and are below [maxRequestsPerHost], in round-robin order. Admitting
+   * a call polls the head and re-adds it at the tail so that one busy host can't starve the others.
+   */
+  private val eligibleHosts = ArrayDeque<HostQueue>()
+
+  /** Number of calls across all of the host queues. */
+  private var readyAsyncCallsCount = 0
 
   /** Running asynchronous calls. Includes canceled calls that haven't finished yet. */
-  private val runningAsyncCalls = ArrayDeque<AsyncCall>()
+  private val runningAsyncCalls = LinkedHashSet<AsyncCall>()
 
   /** Running synchronous calls. Includes canceled calls that haven't finished yet. */
-  private val runningSyncCalls = ArrayDeque<RealCall>()
+  private val runningSyncCalls = LinkedHashSet<RealCall>()
 
   constructor(executorService: ExecutorService) : this() {
     this.executorServiceOrNull = executorService
@@ -116,34 +155,31 @@ class Dispatcher constructor() {
 
   internal fun enqueue(call: AsyncCall) {
     synchronized(this) {
-      readyAsyncCalls.add(call)
-
-      // Mutate the AsyncCall so that it shares the AtomicInteger of an existing running call to
-      // the same host.
-      if (!call.call.forWebSocket) {
-        val existingCall = findExistingCallWithHost(call.host)
-        if (existingCall != null) call.reuseCallsPerHostFrom(existingCall)
+      val hostQueue: HostQueue
+      if (call.call.forWebSocket) {
+        // Web sockets don't count against maxRequestsPerHost, so each one gets a private queue.
+        hostQueue = HostQueue(call.callsPerHost, forWebSocket = true)
+      } else {
+        // Mutate the AsyncCall so that it shares the AtomicInteger of the other calls to the same
+        // host. The lookup is a single hash probe rather than a scan of every queued call.
+        hostQueue = readyCallsByHost.getOrPut(call.host) {
+          HostQueue(call.callsPerHost, forWebSocket = false)
+        }
+        call.reuseCallsPerHostFrom(hostQueue.callsPerHost)
       }
+      hostQueue.calls.add(call)
+      readyAsyncCallsCount++
+      markEligibleIfReady(hostQueue)
     }
     promoteAndExecute()
   }
 
-  private fun findExistingCallWithHost(host: String): AsyncCall? {
-    for (existingCall in runningAsyncCalls) {
-      if (existingCall.host == host) return existingCall
-    }
-    for (existingCall in readyAsyncCalls) {
-      if (existingCall.host == host) return existingCall
-    }
-    return null
-  }
-
   /**
    * Cancel all calls currently enqueued or executing. Includes calls executed both
    * [synchronously][Call.execute] and [asynchronously][Call.enqueue].
    */
   @Synchronized fun cancelAll() {
-    for (call in readyAsyncCalls) {
+    for (call in readyAsyncCalls()) {
       call.call.cancel()
     }
     for (call in runningAsyncCalls) {
@@ -155,10 +191,13 @@ class Dispatcher constructor() {
   }
 
   /**
-   * Promotes eligible calls from [readyAsyncCalls] to [runningAsyncCalls] and runs them on the
+   * Promotes eligible calls from the host queues to [runningAsyncCalls] and runs them on the
    * executor service. Must not be called with synchronization because executing calls can call
    * into user code.
    *
+   * Each admitted call costs O(1): hosts that are at capacity are not in [eligibleHosts] and are
+   * never visited until one of their calls finishes.
+   *
    * @return true if the dispatcher is currently running calls.
    */
   private fun promoteAndExecute(): Boolean {
@@ -167,17 +206,19 @@ class Dispatcher constructor() {
     val executableCalls = mutableListOf<AsyncCall>()
     val isRunning: Boolean
     synchronized(this) {
-      val i = readyAsyncCalls.iterator()
-      while (i.hasNext()) {
-        val asyncCall = i.next()
-        // 最多同时支持64个请求，每个host地址同时只能发起5个请求
-        if (runningAsyncCalls.size >= this.maxRequests) break // Max capacity.
-        if (asyncCall.callsPerHost.get() >= this.maxRequestsPerHost) continue // Host max capacity.
-
-        i.remove()
+      while (runningAsyncCalls.size < this.maxRequests) {
+        val hostQueue = eligibleHosts.poll() ?: break
+        hostQueue.eligible = false
+        if (!hostQueue.hasCapacity()) continue // Host max capacity.
+
+        val asyncCall = hostQueue.calls.poll()
+        readyAsyncCallsCount--
         asyncCall.callsPerHost.incrementAndGet()
         executableCalls.add(asyncCall)
         runningAsyncCalls.add(asyncCall)
+
+        // Round-robin: a host with more work goes to the back of the line.
+        markEligibleIfReady(hostQueue)
       }
       isRunning = runningCallsCount() > 0
     }
@@ -190,6 +231,48 @@ class Dispatcher constructor() {
     return isRunning
   }
 
+  /** Adds [hostQueue] to the tail of [eligibleHosts] if it has calls that could run now. */
+  private fun markEligibleIfReady(hostQueue: HostQueue) {
+    if (!hostQueue.eligible && hostQueue.calls.isNotEmpty() && hostQueue.hasCapacity()) {
+      hostQueue.eligible = true
+      eligibleHosts.add(hostQueue)
+    }
+  }
+
+  /** Re-evaluates every host queue after [maxRequestsPerHost] changes. */
+  private fun recomputeEligibleHosts() {
+    for (hostQueue in readyCallsByHost.values) {
+      markEligibleIfReady(hostQueue)
+    }
+  }
+
+  private fun readyAsyncCalls(): List<AsyncCall> {
+    val result = ArrayList<AsyncCall>(readyAsyncCallsCount)
+    for (hostQueue in readyCallsByHost.values) {
+      result.addAll(hostQueue.calls)
+    }
+    for (hostQueue in eligibleHosts) {
+      if (hostQueue.forWebSocket) result.addAll(hostQueue.calls)
+    }
+    return result
+  }
+
+  /**
+   * The ready calls to a single host along with the counter of that host's running calls, which
+   * is shared with every [AsyncCall] to the host.
+   */
+  private inner class HostQueue(
+    val callsPerHost: AtomicInteger,
+    val forWebSocket: Boolean
+  ) {
+    val calls = ArrayDeque<AsyncCall>()
+
+    /** True if this queue is currently in [eligibleHosts]. */
+    var eligible = false
+
+    fun hasCapacity(): Boolean = forWebSocket || callsPerHost.get() < maxRequestsPerHost
+  }
+
   /** Used by `Call#execute` to signal it is in-flight. */
   @Synchronized internal fun executed(call: RealCall) {
     runningSyncCalls.add(call)
@@ -197,7 +280,18 @@ class Dispatcher constructor() {
 
   /** Used by `AsyncCall#run` to signal completion. */
   internal fun finished(call: AsyncCall) {
-    call.callsPerHost.decrementAndGet()
+    synchronized(this) {
+      call.callsPerHost.decrementAndGet()
+      if (!call.call.forWebSocket) {
+        val hostQueue = readyCallsByHost[call.host]
+        if (hostQueue != null) {
+          markEligibleIfReady(hostQueue)
+          if (hostQueue.calls.isEmpty() && hostQueue.callsPerHost.get() == 0) {
+            readyCallsByHost.remove(call.host)
+          }
+        }
+      }
+    }
     finished(runningAsyncCalls, call)
   }
 
@@ -206,7 +300,7 @@ class Dispatcher constructor() {
     finished(runningSyncCalls, call)
   }
 
-  private fun <T> finished(calls: Deque<T>, call: T) {
+  private fun <T> finished(calls: MutableSet<T>, call: T) {
     val idleCallback: Runnable?
     synchronized(this) {
       if (!calls.remove(call)) throw AssertionError("Call wasn't in-flight!")
@@ -222,7 +316,7 @@ class Dispatcher constructor() {
 
   /** Returns a snapshot of the calls currently awaiting execution. */
   @Synchronized fun queuedCalls(): List<Call> {
-    return Collections.unmodifiableList(readyAsyncCalls.map { it.call })
+    return Collections.unmodifiableList(readyAsyncCalls().map { it.call })
   }
 
   /** Returns a snapshot of the calls currently being executed. */
@@ -230,7 +324,7 @@ class Dispatcher constructor() {
     return Collections.unmodifiableList(runningSyncCalls + runningAsyncCalls.map { it.call })
   }
 
-  @Synchronized fun queuedCallsCount(): Int = readyAsyncCalls.size
+  @Synchronized fun queuedCallsCount(): Int = readyAsyncCallsCount
 
   @Synchronized fun runningCallsCount(): Int = runningAsyncCalls.size + runningSyncCalls.size
 
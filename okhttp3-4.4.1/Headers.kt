@@ -50,8 +50,18 @@ import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement
 class Headers private constructor(
   private val namesAndValues: Array<String>
 ) : Iterable<Pair<String, String>> {
+  /**
+   * An index of fields by name, built the first time a large header set is searched. Small header
+   * sets are faster to scan than to hash, and never build one.
+   */
+  @Volatile private var nameIndex: NameIndex? = null
+
   /** Returns the last value corresponding to the specified field, or null. */
-  operator fun get(name: String): String? = get(namesAndValues, name)
+  operator fun get(name: String): String? {
+    val nameIndex = nameIndex() ?: return get(namesAndValues, name)
+    val index = nameIndex.last(name)
+    return if (index != -1) value(index) else null
+  }
 
   /**
    * Returns the last value corresponding to the specified field parsed as an HTTP date, or null if
@@ -90,6 +100,19 @@ class Headers private constructor(
 
   /** Returns an immutable list of the header values for `name`. */
   fun values(name: String): List<String> {
+    val nameIndex = nameIndex()
+    if (nameIndex != null) {
+      var index = nameIndex.last(name)
+      if (index == -1) return emptyList()
+      val result = ArrayList<String>(2)
+      while (index != -1) {
+        result.add(value(index))
+        index = nameIndex.previous(index)
+      }
+      result.reverse()
+      return Collections.unmodifiableList(result)
+    }
+
     var result: MutableList<String>? = null
     for (i in 0 until size) {
       if (name.equals(name(i), ignoreCase = true)) {
@@ -121,6 +144,11 @@ class Headers private constructor(
     return result
   }
 
+  private fun nameIndex(): NameIndex? {
+    if (namesAndValues.size < INDEX_THRESHOLD * 2) return null
+    return nameIndex ?: NameIndex(namesAndValues).also { nameIndex = it }
+  }
+
   override operator fun iterator(): Iterator<Pair<String, String>> {
     return Array(size) { name(it) to value(it) }.iterator()
   }
@@ -296,7 +324,7 @@ class Headers private constructor(
      * from the remote peer or cache.
      */
     internal fun addLenient(name: String, value: String) = apply {
-      namesAndValues.add(name)
+      namesAndValues.add(WELL_KNOWN_NAMES[name] ?: name)
       namesAndValues.add(value.trim())
     }
 
@@ -336,7 +364,96 @@ class Headers private constructor(
     fun build(): Headers = Headers(namesAndValues.toTypedArray())
   }
 
+  /**
+   * An open-addressed hash table from case-insensitive field names to the last field with that
+   * name. Each field links to the previous field with the same name, so every value for a name can
+   * be found without scanning the others.
+   */
+  private class NameIndex(private val namesAndValues: Array<String>) {
+    /** Field indexes plus one, or 0 for an empty slot. */
+    private val slots: IntArray
+    private val mask: Int
+
+    /** The index of the previous field with the same name, or -1. */
+    private val previous = IntArray(namesAndValues.size / 2)
+
+    init {
+      val fieldCount = namesAndValues.size / 2
+      val capacity = Integer.highestOneBit(fieldCount) shl 2 // Keep the load factor under 1/2.
+      slots = IntArray(capacity)
+      mask = capacity - 1
+
+      for (field in 0 until fieldCount) {
+        val slot = slot(namesAndValues[field * 2])
+        previous[field] = slots[slot] - 1
+        slots[slot] = field + 1
+      }
+    }
+
+    /** Returns the index of the last field named [name], or -1 if there is none. */
+    fun last(name: String): Int = slots[slot(name)] - 1
+
+    fun previous(index: Int): Int = previous[index]
+
+    /** Returns the slot that holds [name], or the empty slot where it belongs. */
+    private fun slot(name: String): Int {
+      var slot = name.caseInsensitiveHash() and mask
+      while (true) {
+        val field = slots[slot] - 1
+        if (field == -1 || name.equals(namesAndValues[field * 2], ignoreCase = true)) return slot
+        slot = (slot + 1) and mask
+      }
+    }
+  }
+
   companion object {
+    /** Header sets with at least this many fields index them by name on first lookup. */
+    private const val INDEX_THRESHOLD = 16
+
+    /**
+     * Field names that most messages have, in the cases that HTTP/1 and HTTP/2 peers send them.
+     * Received names are replaced with these instances so that lookups with the same constant find
+     * them by identity rather than by comparing characters.
+     */
+    private val WELL_KNOWN_NAMES: Map<String, String> = listOf(
+        "Accept-Ranges",
+        "Age",
+        "Cache-Control",
+        "Connection",
+        "Content-Encoding",
+        "Content-Length",
+        "Content-Range",
+        "Content-Type",
+        "Date",
+        "ETag",
+        "Expires",
+        "Keep-Alive",
+        "Last-Modified",
+        "Location",
+        "Pragma",
+        "Server",
+        "Set-Cookie",
+        "Strict-Transport-Security",
+        "Transfer-Encoding",
+        "Vary",
+        "Warning"
+    ).flatMap { listOf(it, it.toLowerCase(Locale.US)) }.associateBy { it }
+
+    /** Returns a hash of this that is the same for strings that are equal ignoring case. */
+    private fun String.caseInsensitiveHash(): Int {
+      var result = 0
+      for (i in 0 until length) {
+        val c = this[i]
+        val folded = when {
+          c in 'A'..'Z' -> c + ('a' - 'A')
+          c < '\u0080' -> c
+          else -> Character.toLowerCase(Character.toUpperCase(c))
+        }
+        result = 31 * result + folded.toInt()
+      }
+      return result
+    }
+
     private fun get(namesAndValues: Array<String>, name: String): String? {
       for (i in namesAndValues.size - 2 downTo 0 step 2) {
         if (name.equals(namesAndValues[i], ignoreCase = true)) {
@@ -347,25 +347,6 @@ class HttpUrl internal constructor(
    */
   @get:JvmName("port") val port: Int,
 
-  /**
-   * A list of path segments like `["a", "b", "c"]` for the URL `http://host/a/b/c`. This list is
-   * never empty though it may contain a single empty string.
-   *
-   * | URL                      | `pathSegments()`    |
-   * | :----------------------- | :------------------ |
-   * | `http://host/`           | `[""]`              |
-   * | `http://host/a/b/c"`     | `["a", "b", "c"]`   |
-   * | `http://host/a/b%20c/d"` | `["a", "b c", "d"]` |
-   */
-  @get:JvmName("pathSegments") val pathSegments: List<String>,
-
-  /**
-   * Alternating, decoded query names and values, or null for no query. Names may be empty or
-   * non-empty, but never null. Values are null if the name has no corresponding '=' separator, or
-   * empty, or non-empty.
-   */
-  private val queryNamesAndValues: List<String?>?,
-
   /**
    * This URL's fragment, like `"abc"` for `http://host/#abc`. This is null if the URL has no
    * fragment.
@@ -384,6 +365,47 @@ class HttpUrl internal constructor(
 ) {
   val isHttps: Boolean = scheme == "https"
 
+  /**
+   * Decoded path segments and query parameters are derived from [url] the first time they're
+   * needed. Most URLs are only ever used as a whole, and those never pay to decode their parts.
+   */
+  @Volatile private var decodedPathSegments: List<String>? = null
+  @Volatile private var decodedQueryNamesAndValues: List<String?>? = null
+
+  /**
+   * A list of path segments like `["a", "b", "c"]` for the URL `http://host/a/b/c`. This list is
+   * never empty though it may contain a single empty string.
+   *
+   * | URL                      | `pathSegments()`    |
+   * | :----------------------- | :------------------ |
+   * | `http://host/`           | `[""]`              |
+   * | `http://host/a/b/c"`     | `["a", "b", "c"]`   |
+   * | `http://host/a/b%20c/d"` | `["a", "b c", "d"]` |
+   */
+  @get:JvmName("pathSegments") val pathSegments: List<String>
+    get() {
+      val result = decodedPathSegments
+      if (result != null) return result
+      @Suppress("UNCHECKED_CAST") // percentDecode returns either List<String?> or List<String>.
+      return (encodedPathSegments.percentDecode() as List<String>)
+          .also { decodedPathSegments = it }
+    }
+
+  /**
+   * Alternating, decoded query names and values, or null for no query. Names may be empty or
+   * non-empty, but never null. Values are null if the name has no corresponding '=' separator, or
+   * empty, or non-empty.
+   */
+  private val queryNamesAndValues: List<String?>?
+    get() {
+      val result = decodedQueryNamesAndValues
+      if (result != null) return result
+      val encodedQuery = encodedQuery ?: return null
+      return encodedQuery.toQueryNamesAndValues()
+          .percentDecode(plusIsSpace = true)
+          .also { decodedQueryNamesAndValues = it }
+    }
+
   /** Returns this URL as a [java.net.URL][URL]. */
   @JvmName("url") fun toUrl(): URL {
     try {
@@ -413,8 +435,7 @@ class HttpUrl internal constructor(
     } catch (e: URISyntaxException) {
       // Unlikely edge case: the URI has a forbidden character in the fragment. Strip it & retry.
       try {
-        val stripped = uri.replace(Regex("[\\u0000-\\u001F\\u007F-\\u009F\\p{javaWhitespace}]"), "")
-        URI.create(stripped)
+        URI.create(uri.stripControlsAndWhitespace())
       } catch (e1: Exception) {
         throw RuntimeException(e) // Unexpected!
       }
@@ -525,10 +546,11 @@ class HttpUrl internal constructor(
    */
   @get:JvmName("encodedQuery") val encodedQuery: String?
     get() {
-      if (queryNamesAndValues == null) return null // No query.
-      val queryStart = url.indexOf('?') + 1
-      val queryEnd = url.delimiterOffset('#', queryStart, url.length)
-      return url.substring(queryStart, queryEnd)
+      val pathStart = url.indexOf('/', scheme.length + 3) // "://".length() == 3.
+      val queryDelimiter = url.delimiterOffset("?#", pathStart, url.length)
+      if (queryDelimiter == url.length || url[queryDelimiter] != '?') return null // No query.
+      val queryEnd = url.delimiterOffset('#', queryDelimiter + 1, url.length)
+      return url.substring(queryDelimiter + 1, queryEnd)
     }
 
   /**
@@ -546,7 +568,7 @@ class HttpUrl internal constructor(
    */
   @get:JvmName("query") val query: String?
     get() {
-      if (queryNamesAndValues == null) return null // No query.
+      val queryNamesAndValues = this.queryNamesAndValues ?: return null // No query.
       val result = StringBuilder()
       queryNamesAndValues.toQueryString(result)
       return result.toString()
@@ -567,7 +589,8 @@ class HttpUrl internal constructor(
    */
   @get:JvmName("querySize") val querySize: Int
     get() {
-      return if (queryNamesAndValues != null) queryNamesAndValues.size / 2 else 0
+      val queryNamesAndValues = this.queryNamesAndValues ?: return 0
+      return queryNamesAndValues.size / 2
     }
 
   /**
@@ -583,7 +606,7 @@ class HttpUrl internal constructor(
    * | `http://host/?a=apple&b`          | `"apple"`             |
    */
   fun queryParameter(name: String): String? {
-    if (queryNamesAndValues == null) return null
+    val queryNamesAndValues = this.queryNamesAndValues ?: return null
     for (i in 0 until queryNamesAndValues.size step 2) {
       if (name == queryNamesAndValues[i]) {
         return queryNamesAndValues[i + 1]
@@ -606,7 +629,7 @@ class HttpUrl internal constructor(
    */
   @get:JvmName("queryParameterNames") val queryParameterNames: Set<String>
     get() {
-      if (queryNamesAndValues == null) return emptySet()
+      val queryNamesAndValues = this.queryNamesAndValues ?: return emptySet()
       val result = LinkedHashSet<String>()
       for (i in 0 until queryNamesAndValues.size step 2) {
         result.add(queryNamesAndValues[i]!!)
@@ -628,7 +651,7 @@ class HttpUrl internal constructor(
    * | `http://host/?a=apple&b`          | `["apple"]`                 | `[null]`                    |
    */
   fun queryParameterValues(name: String): List<String?> {
-    if (queryNamesAndValues == null) return emptyList()
+    val queryNamesAndValues = this.queryNamesAndValues ?: return emptyList()
     val result = mutableListOf<String?>()
     for (i in 0 until queryNamesAndValues.size step 2) {
       if (name == queryNamesAndValues[i]) {
@@ -652,7 +675,7 @@ class HttpUrl internal constructor(
    * | `http://host/?a=apple&b`          | `"a"`                   | `"b"`                   |
    */
   fun queryParameterName(index: Int): String {
-    if (queryNamesAndValues == null) throw IndexOutOfBoundsException()
+    val queryNamesAndValues = this.queryNamesAndValues ?: throw IndexOutOfBoundsException()
     return queryNamesAndValues[index * 2]!!
   }
 
@@ -670,7 +693,7 @@ class HttpUrl internal constructor(
    * | `http://host/?a=apple&b`          | `"apple"`                | null                     |
    */
   fun queryParameterValue(index: Int): String? {
-    if (queryNamesAndValues == null) throw IndexOutOfBoundsException()
+    val queryNamesAndValues = this.queryNamesAndValues ?: throw IndexOutOfBoundsException()
     return queryNamesAndValues[index * 2 + 1]
   }
 
@@ -726,6 +749,7 @@ class HttpUrl internal constructor(
     result.encodedPathSegments.addAll(encodedPathSegments)
     result.encodedQuery(encodedQuery)
     result.encodedFragment = encodedFragment
+    result.parsedUrl = url
     return result
   }
 
@@ -784,6 +808,9 @@ class HttpUrl internal constructor(
     internal var encodedQueryNamesAndValues: MutableList<String?>? = null
     internal var encodedFragment: String? = null
 
+    /** A URL string that [build] uses as-is if it is still canonical for this builder. */
+    internal var parsedUrl: String? = null
+
     init {
       encodedPathSegments.add("") // The default path is '/' which needs a trailing space.
     }
@@ -1007,7 +1034,7 @@ class HttpUrl internal constructor(
      * particularly strict for certain components.
      */
     internal fun reencodeForUri() = apply {
-      host = host?.replace(Regex("[\"<>^`{|}]"), "")
+      host = host?.removeIf { it in "\"<>^`{|}" }
 
       for (i in 0 until encodedPathSegments.size) {
         encodedPathSegments[i] = encodedPathSegments[i].canonicalize(
@@ -1038,20 +1065,82 @@ class HttpUrl internal constructor(
     }
 
     fun build(): HttpUrl {
-      @Suppress("UNCHECKED_CAST") // percentDecode returns either List<String?> or List<String>.
       return HttpUrl(
           scheme = scheme ?: throw IllegalStateException("scheme == null"),
           username = encodedUsername.percentDecode(),
           password = encodedPassword.percentDecode(),
           host = host ?: throw IllegalStateException("host == null"),
           port = effectivePort(),
-          pathSegments = encodedPathSegments.percentDecode() as List<String>,
-          queryNamesAndValues = encodedQueryNamesAndValues?.percentDecode(plusIsSpace = true),
           fragment = encodedFragment?.percentDecode(),
-          url = toString()
+          url = parsedUrl?.takeIf { isCanonical(it) } ?: toString()
       )
     }
 
+    /**
+     * Returns true if [candidate] is exactly what [toString] returns. Most URLs are canonical as
+     * they are parsed, and for those this saves building the same string again. This compares the
+     * components in place and doesn't allocate, so a builder that was changed after it was parsed
+     * simply fails to match.
+     */
+    private fun isCanonical(candidate: String): Boolean {
+      val scheme = scheme ?: return false
+      val host = host ?: return false
+
+      var i = candidate.matchAt(0, scheme)
+      i = candidate.matchAt(i, "://")
+
+      if (encodedUsername.isNotEmpty() || encodedPassword.isNotEmpty()) {
+        i = candidate.matchAt(i, encodedUsername)
+        if (encodedPassword.isNotEmpty()) {
+          i = candidate.matchAt(i, ':')
+          i = candidate.matchAt(i, encodedPassword)
+        }
+        i = candidate.matchAt(i, '@')
+      }
+
+      if (':' in host) {
+        // Host is an IPv6 address.
+        i = candidate.matchAt(i, '[')
+        i = candidate.matchAt(i, host)
+        i = candidate.matchAt(i, ']')
+      } else {
+        i = candidate.matchAt(i, host)
+      }
+
+      val effectivePort = effectivePort()
+      if (effectivePort != defaultPort(scheme)) {
+        i = candidate.matchAt(i, ':')
+        i = candidate.matchPortAt(i, effectivePort)
+      }
+
+      for (segment in 0 until encodedPathSegments.size) {
+        i = candidate.matchAt(i, '/')
+        i = candidate.matchAt(i, encodedPathSegments[segment])
+      }
+
+      val encodedQueryNamesAndValues = this.encodedQueryNamesAndValues
+      if (encodedQueryNamesAndValues != null) {
+        i = candidate.matchAt(i, '?')
+        for (q in 0 until encodedQueryNamesAndValues.size step 2) {
+          if (q > 0) i = candidate.matchAt(i, '&')
+          i = candidate.matchAt(i, encodedQueryNamesAndValues[q]!!)
+          val value = encodedQueryNamesAndValues[q + 1]
+          if (value != null) {
+            i = candidate.matchAt(i, '=')
+            i = candidate.matchAt(i, value)
+          }
+        }
+      }
+
+      val encodedFragment = this.encodedFragment
+      if (encodedFragment != null) {
+        i = candidate.matchAt(i, '#')
+        i = candidate.matchAt(i, encodedFragment)
+      }
+
+      return i == candidate.length
+    }
+
     override fun toString(): String {
       return buildString {
         if (scheme != null) {
@@ -1106,6 +1195,7 @@ class HttpUrl internal constructor(
     internal fun parse(base: HttpUrl?, input: String): Builder {
       var pos = input.indexOfFirstNonAsciiWhitespace()
       val limit = input.indexOfLastNonAsciiWhitespace(pos)
+      parsedUrl = input.substring(pos, limit)
 
       // Scheme.
       val schemeDelimiterOffset = schemeDelimiterOffset(input, pos, limit)
@@ -1407,6 +1497,30 @@ class HttpUrl internal constructor(
         return limit // No colon.
       }
 
+      /** Returns the offset following [prefix] if this has it at [offset], or -1 otherwise. */
+      private fun String.matchAt(offset: Int, prefix: String): Int {
+        if (offset == -1 || !startsWith(prefix, offset)) return -1
+        return offset + prefix.length
+      }
+
+      /** Returns the offset following [c] if this has it at [offset], or -1 otherwise. */
+      private fun String.matchAt(offset: Int, c: Char): Int {
+        if (offset == -1 || offset >= length || this[offset] != c) return -1
+        return offset + 1
+      }
+
+      /** Returns the offset following the canonical digits of [port] at [offset], or -1. */
+      private fun String.matchPortAt(offset: Int, port: Int): Int {
+        if (offset == -1) return -1
+        var end = offset
+        var value = 0
+        while (end < length && end - offset < 5 && this[end] in '0'..'9') {
+          value = value * 10 + (this[end] - '0')
+          end++
+        }
+        return if (value == port && this[offset] != '0') end else -1
+      }
+
       private fun parsePort(input: String, pos: Int, limit: Int): Int {
         return try {
           // Canonicalize the port string to skip '\n' etc.
@@ -1572,6 +1686,16 @@ class HttpUrl internal constructor(
       }
     }
 
+    /** Returns this string without control and whitespace characters, which URI forbids. */
+    private fun String.stripControlsAndWhitespace(): String = removeIf {
+      it in '\u0000'..'\u001F' || it in '\u007F'..'\u009F' || Character.isWhitespace(it)
+    }
+
+    /** Returns this string without the characters matching [predicate], or this if none match. */
+    private inline fun String.removeIf(predicate: (Char) -> Boolean): String {
+      return if (none(predicate)) this else filterNot(predicate)
+    }
+
     private fun List<String?>.percentDecode(plusIsSpace: Boolean = false): List<String?> {
       val size = size
       val result = ArrayList<String?>(size)
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3
+
+import java.util.TreeSet
+import okhttp3.internal.publicsuffix.PublicSuffixDatabase
+
+/**
+ * A [CookieJar] that accepts every cookie and keeps it in memory until it expires, is replaced, or
+ * is evicted. It is safe for concurrent use.
+ *
+ * Cookies are indexed by the registrable domain of their domain, like `example.com` for a cookie
+ * set by `www.example.com`. Loading cookies for a request only examines the cookies of its host's
+ * registrable domain. Domains are spread over several shards that each have their own lock, so
+ * calls to different sites don't contend.
+ *
+ * Each shard holds an equal share of [maxCookies]. When a shard is full the cookies that expire
+ * soonest are evicted first, and session cookies last. Expired cookies are dropped as they're
+ * found.
+ */
+class InMemoryCookieJar internal constructor(
+  maxCookies: Int,
+  shardCount: Int,
+  private val currentTimeMillis: () -> Long
+) : CookieJar {
+  private val shards: Array<Shard>
+
+  init {
+    require(maxCookies > 0) { "maxCookies <= 0: $maxCookies" }
+    require(shardCount > 0) { "shardCount <= 0: $shardCount" }
+    val maxCookiesPerShard = (maxCookies + shardCount - 1) / shardCount
+    shards = Array(shardCount) { Shard(maxCookiesPerShard) }
+  }
+
+  @JvmOverloads constructor(
+    maxCookies: Int = 3000
+  ) : this(maxCookies, DEFAULT_SHARD_COUNT, System::currentTimeMillis)
+
+  override fun saveFromResponse(url: HttpUrl, cookies: List<Cookie>) {
+    val now = currentTimeMillis()
+    for (cookie in cookies) {
+      val registrableDomain = registrableDomain(cookie.domain)
+      shardFor(registrableDomain).save(registrableDomain, cookie, now)
+    }
+  }
+
+  override fun loadForRequest(url: HttpUrl): List<Cookie> {
+    val registrableDomain = registrableDomain(url.host)
+    return shardFor(registrableDomain).load(registrableDomain, url, currentTimeMillis())
+  }
+
+  /** Returns the number of cookies in this jar, including any that have expired but remain. */
+  fun size(): Int = shards.sumBy { it.size() }
+
+  /** Forgets every cookie. */
+  fun evictAll() {
+    for (shard in shards) shard.evictAll()
+  }
+
+  private fun registrableDomain(host: String): String {
+    return PublicSuffixDatabase.get().getEffectiveTldPlusOne(host) ?: host
+  }
+
+  private fun shardFor(registrableDomain: String): Shard {
+    return shards[(registrableDomain.hashCode() and Int.MAX_VALUE) % shards.size]
+  }
+
+  private class Shard(private val maxCookies: Int) {
+    /** Stored cookies by the registrable domain of their domain. */
+    private val cookiesByDomain = HashMap<String, MutableList<Entry>>()
+
+    /** Every stored cookie, the one that expires soonest first. */
+    private val entriesByExpiration = TreeSet<Entry>()
+
+    private var nextSequence = 0L
+
+    @Synchronized fun save(registrableDomain: String, cookie: Cookie, now: Long) {
+      removeExpired(now)
+
+      // A new cookie replaces the cookie with the same name, domain, and path.
+      val entries = cookiesByDomain[registrableDomain]
+      val replaced = entries?.firstOrNull {
+        it.cookie.name == cookie.name &&
+            it.cookie.domain == cookie.domain &&
+            it.cookie.path == cookie.path
+      }
+      if (replaced != null) remove(replaced)
+
+      // Servers delete cookies by sending them already expired.
+      if (cookie.expiresAt <= now) return
+
+      val entry = Entry(registrableDomain, cookie, nextSequence++)
+      cookiesByDomain.getOrPut(registrableDomain) { mutableListOf() }.add(entry)
+      entriesByExpiration.add(entry)
+
+      while (entriesByExpiration.size > maxCookies) {
+        remove(entriesByExpiration.first())
+      }
+    }
+
+    @Synchronized fun load(registrableDomain: String, url: HttpUrl, now: Long): List<Cookie> {
+      val entries = cookiesByDomain[registrableDomain] ?: return emptyList()
+      var result: MutableList<Cookie>? = null
+      var hasExpired = false
+      for (entry in entries) {
+        if (entry.cookie.expiresAt <= now) {
+          hasExpired = true
+          continue
+        }
+        if (!entry.cookie.matches(url)) continue
+        if (result == null) result = mutableListOf()
+        result.add(entry.cookie)
+      }
+      if (hasExpired) removeExpired(now)
+      return result ?: emptyList()
+    }
+
+    @Synchronized fun size(): Int = entriesByExpiration.size
+
+    @Synchronized fun evictAll() {
+      cookiesByDomain.clear()
+      entriesByExpiration.clear()
+    }
+
+    private fun removeExpired(now: Long) {
+      while (entriesByExpiration.isNotEmpty()) {
+        val soonest = entriesByExpiration.first()
+        if (soonest.cookie.expiresAt > now) return
+        remove(soonest)
+      }
+    }
+
+    private fun remove(entry: Entry) {
+      entriesByExpiration.remove(entry)
+      val entries = cookiesByDomain[entry.registrableDomain] ?: return
+      entries.remove(entry)
+      if (entries.isEmpty()) cookiesByDomain.remove(entry.registrableDomain)
+    }
+  }
+
+  /** A stored cookie. Entries that expire at the same time are ordered by when they were stored. */
+  private class Entry(
+    val registrableDomain: String,
+    val cookie: Cookie,
+    val sequence: Long
+  ) : Comparable<Entry> {
+    override fun compareTo(other: Entry): Int {
+      val byExpiration = cookie.expiresAt.compareTo(other.cookie.expiresAt)
+      return if (byExpiration != 0) byExpiration else sequence.compareTo(other.sequence)
+    }
+  }
+
+  companion object {
+    private const val DEFAULT_SHARD_COUNT = 16
+  }
+}
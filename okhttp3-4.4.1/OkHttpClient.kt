@@ -32,10 +32,15 @@ import javax.net.ssl.X509TrustManager
 import okhttp3.Protocol.HTTP_1_1
 import okhttp3.Protocol.HTTP_2
 import okhttp3.internal.asFactory
+import okhttp3.internal.cache.CacheInterceptor
 import okhttp3.internal.checkDuration
 import okhttp3.internal.concurrent.TaskRunner
+import okhttp3.internal.connection.ConnectInterceptor
 import okhttp3.internal.connection.RealCall
 import okhttp3.internal.connection.RouteDatabase
+import okhttp3.internal.http.BridgeInterceptor
+import okhttp3.internal.http.CallServerInterceptor
+import okhttp3.internal.http.RetryAndFollowUpInterceptor
 import okhttp3.internal.immutableListOf
 import okhttp3.internal.platform.Platform
 import okhttp3.internal.proxy.NullProxySelector
@@ -155,6 +160,9 @@ open class OkHttpClient internal constructor(
   @get:JvmName("retryOnConnectionFailure") val retryOnConnectionFailure: Boolean =
       builder.retryOnConnectionFailure
 
+  // 是否并发尝试多个IP地址建立连接 (Happy Eyeballs)
+  @get:JvmName("fastFallback") val fastFallback: Boolean = builder.fastFallback
+
   // 用于自动重新认证 在收到返回的状态码是401的情况下，直接调用authenticator在header中加入请求头重新发起请求
   @get:JvmName("authenticator") val authenticator: Authenticator = builder.authenticator
 
@@ -167,6 +175,9 @@ open class OkHttpClient internal constructor(
   // 管理Cookie控制器  默认是空实现
   @get:JvmName("cookieJar") val cookieJar: CookieJar = builder.cookieJar
 
+  @get:JvmName("contentDecoders") val contentDecoders: List<ContentDecoder> =
+      builder.contentDecoders
+
   // Cache
   @get:JvmName("cache") val cache: Cache? = builder.cache
 
@@ -232,8 +243,36 @@ open class OkHttpClient internal constructor(
   /** Web socket and HTTP/2 ping interval (in milliseconds). By default pings are not sent. */
   @get:JvmName("pingIntervalMillis") val pingIntervalMillis: Int = builder.pingInterval
 
+  /**
+   * Minimum outbound web socket message size (in bytes) that will be compressed.
+   * The default is 1024 bytes.
+   */
+  @get:JvmName("minWebSocketMessageToCompress")
+  val minWebSocketMessageToCompress: Long = builder.minWebSocketMessageToCompress
+
+  /**
+   * How long (in milliseconds) an outbound web socket message may wait for others to be written
+   * with it. By default messages are written as soon as possible.
+   */
+  @get:JvmName("webSocketBatchLatencyMillis")
+  val webSocketBatchLatencyMillis: Int = builder.webSocketBatchLatency
+
   val routeDatabase: RouteDatabase = builder.routeDatabase ?: RouteDatabase()
 
+  /**
+   * Every interceptor a call runs through: the application's, OkHttp's own, the network
+   * interceptors, and finally the one that talks to the server. None of these hold per-call state,
+   * so the list is built once and shared by every call.
+   */
+  internal val callInterceptors: List<Interceptor> by lazy {
+    interceptorStack(forWebSocket = false)
+  }
+
+  /** Like [callInterceptors] but without network interceptors, for web socket handshakes. */
+  internal val webSocketInterceptors: List<Interceptor> by lazy {
+    interceptorStack(forWebSocket = true)
+  }
+
   constructor() : this(Builder())
 
   init {
@@ -263,6 +302,23 @@ open class OkHttpClient internal constructor(
     }
   }
 
+  private fun interceptorStack(forWebSocket: Boolean): List<Interceptor> {
+    // 拦截器集合
+    val result = mutableListOf<Interceptor>()
+    // 可以添加自定义Interceptor
+    result += interceptors // 可以自定义拦截器  eg.添加header
+    result += RetryAndFollowUpInterceptor(this) // 重试和重定向
+    result += BridgeInterceptor(cookieJar, contentDecoders) // 桥接
+    result += CacheInterceptor(cache) // 缓存
+    result += ConnectInterceptor // 连接
+    if (!forWebSocket) {
+      // 网络调试使用  不能用来改变request
+      result += networkInterceptors
+    }
+    result += CallServerInterceptor(forWebSocket) // 请求
+    return result.toImmutableList()
+  }
+
   /** Prepares the [request] to be executed at some point in the future. */
   override fun newCall(request: Request): Call = RealCall(this, request, forWebSocket = false)
 
@@ -273,7 +329,9 @@ open class OkHttpClient internal constructor(
         request,
         listener,
         Random(),
-        pingIntervalMillis.toLong()
+        pingIntervalMillis.toLong(),
+        minWebSocketMessageToCompress,
+        webSocketBatchLatencyMillis.toLong()
     )
     webSocket.connect(this)
     return webSocket
@@ -289,10 +347,12 @@ open class OkHttpClient internal constructor(
     internal val networkInterceptors: MutableList<Interceptor> = mutableListOf()
     internal var eventListenerFactory: EventListener.Factory = EventListener.NONE.asFactory()
     internal var retryOnConnectionFailure = true
+    internal var fastFallback = false
     internal var authenticator: Authenticator = Authenticator.NONE
     internal var followRedirects = true
     internal var followSslRedirects = true
     internal var cookieJar: CookieJar = CookieJar.NO_COOKIES
+    internal var contentDecoders: List<ContentDecoder> = immutableListOf(ContentDecoder.GZIP)
     internal var cache: Cache? = null
     internal var dns: Dns = Dns.SYSTEM
     internal var proxy: Proxy? = null
@@ -311,6 +371,8 @@ open class OkHttpClient internal constructor(
     internal var readTimeout = 10_000
     internal var writeTimeout = 10_000
     internal var pingInterval = 0
+    internal var minWebSocketMessageToCompress = RealWebSocket.DEFAULT_MINIMUM_DEFLATE_SIZE
+    internal var webSocketBatchLatency = 0
     internal var routeDatabase: RouteDatabase? = null
 
     internal constructor(okHttpClient: OkHttpClient) : this() {
@@ -320,10 +382,12 @@ open class OkHttpClient internal constructor(
       this.networkInterceptors += okHttpClient.networkInterceptors
       this.eventListenerFactory = okHttpClient.eventListenerFactory
       this.retryOnConnectionFailure = okHttpClient.retryOnConnectionFailure
+      this.fastFallback = okHttpClient.fastFallback
       this.authenticator = okHttpClient.authenticator
       this.followRedirects = okHttpClient.followRedirects
       this.followSslRedirects = okHttpClient.followSslRedirects
       this.cookieJar = okHttpClient.cookieJar
+      this.contentDecoders = okHttpClient.contentDecoders
       this.cache = okHttpClient.cache
       this.dns = okHttpClient.dns
       this.proxy = okHttpClient.proxy
@@ -342,6 +406,8 @@ open class OkHttpClient internal constructor(
       this.readTimeout = okHttpClient.readTimeoutMillis
       this.writeTimeout = okHttpClient.writeTimeoutMillis
       this.pingInterval = okHttpClient.pingIntervalMillis
+      this.minWebSocketMessageToCompress = okHttpClient.minWebSocketMessageToCompress
+      this.webSocketBatchLatency = okHttpClient.webSocketBatchLatencyMillis
       this.routeDatabase = okHttpClient.routeDatabase
     }
 
@@ -433,6 +499,23 @@ open class OkHttpClient internal constructor(
       this.retryOnConnectionFailure = retryOnConnectionFailure
     }
 
+    /**
+     * Configure this client to race connections to a host's IP addresses rather than trying them
+     * one at a time, in the style of Happy Eyeballs ([RFC 8305][rfc_8305]). Resolved IPv6 and IPv4
+     * addresses are interleaved, and if a connection attempt hasn't succeeded after 250 ms another
+     * is started to the next address. The first connection to succeed is used and the others are
+     * canceled. Each attempt reports its own [EventListener.connectStart] and
+     * [EventListener.connectEnd] or [EventListener.connectFailed] events, possibly concurrently.
+     *
+     * This prevents an unreachable address, such as a blackholed IPv6 route, from costing a full
+     * connect timeout before the next address is tried. It is off by default.
+     *
+     * [rfc_8305]: https://tools.ietf.org/html/rfc8305
+     */
+    fun fastFallback(fastFallback: Boolean) = apply {
+      this.fastFallback = fastFallback
+    }
+
     /**
      * Sets the authenticator used to respond to challenges from origin servers. Use
      * [proxyAuthenticator] to set the authenticator for proxy servers.
@@ -468,6 +551,22 @@ open class OkHttpClient internal constructor(
       this.cookieJar = cookieJar
     }
 
+    /**
+     * Sets the decoders for compressed response bodies. Their encodings are advertised in the
+     * `Accept-Encoding` header of requests that don't have one, and responses that use them are
+     * decoded transparently. Pass an empty list to disable transparent decoding.
+     *
+     * If unset, only [gzip][ContentDecoder.GZIP] is used. Decoders are offered in list order, so
+     * list preferred encodings first.
+     */
+    fun contentDecoders(contentDecoders: List<ContentDecoder>) = apply {
+      val contentDecodersCopy = contentDecoders.toMutableList()
+      require(null !in (contentDecodersCopy as List<ContentDecoder?>)) {
+        "contentDecoders must not contain null"
+      }
+      this.contentDecoders = contentDecodersCopy.toImmutableList()
+    }
+
     /** Sets the response cache to be used to read and write cached responses. */
     fun cache(cache: Cache?) = apply {
       this.cache = cache
@@ -841,6 +940,46 @@ open class OkHttpClient internal constructor(
       pingInterval = checkDuration("timeout", duration.toMillis(), TimeUnit.MILLISECONDS)
     }
 
+    /**
+     * Sets minimum outbound web socket message size (in bytes) that will be compressed.
+     *
+     * Web sockets offer the `permessage-deflate` extension and use it if the server agrees. This
+     * sets the size of the smallest message that will be compressed. Set it to 0 to compress
+     * every message, or to [Long.MAX_VALUE] to send every message uncompressed. Incoming messages
+     * are inflated whenever the server compresses them.
+     *
+     * The default value is 1024 bytes.
+     */
+    fun minWebSocketMessageToCompress(bytes: Long) = apply {
+      require(bytes >= 0) { "minWebSocketMessageToCompress must be positive: $bytes" }
+      this.minWebSocketMessageToCompress = bytes
+    }
+
+    /**
+     * Sets how long an outbound web socket message may wait so that messages sent shortly after it
+     * are written to the socket in the same batch. Frames that are already enqueued when the writer
+     * runs are always written together. This trades a little latency for fewer socket writes when
+     * many small messages are sent in bursts.
+     *
+     * The default value of 0 writes messages as soon as possible.
+     */
+    fun webSocketBatchLatency(latency: Long, unit: TimeUnit) = apply {
+      webSocketBatchLatency = checkDuration("latency", latency, unit)
+    }
+
+    /**
+     * Sets how long an outbound web socket message may wait so that messages sent shortly after it
+     * are written to the socket in the same batch. Frames that are already enqueued when the writer
+     * runs are always written together. This trades a little latency for fewer socket writes when
+     * many small messages are sent in bursts.
+     *
+     * The default value of 0 writes messages as soon as possible.
+     */
+    @IgnoreJRERequirement
+    fun webSocketBatchLatency(duration: Duration) = apply {
+      webSocketBatchLatency = checkDuration("latency", duration.toMillis(), TimeUnit.MILLISECONDS)
+    }
+
     fun build(): OkHttpClient = OkHttpClient(this)
   }
 
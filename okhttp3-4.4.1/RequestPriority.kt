@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3
+
+/**
+ * A hint of how urgently a request's exchange should be carried, relative to other calls sharing
+ * the same HTTP/2 connection. Attach it to a request as a tag:
+ *
+ * ```
+ * Request request = new Request.Builder()
+ *     .url("https://example.com/large-download")
+ *     .tag(RequestPriority.class, RequestPriority.BULK)
+ *     .build();
+ * ```
+ *
+ * Requests without this tag are [NORMAL]. HTTP/1 connections carry one call at a time and ignore it.
+ * Application interceptors may change the tag. Network interceptors can't, because the connection
+ * has already been chosen by then.
+ */
+enum class RequestPriority {
+  /** Latency-sensitive calls. Their request bodies are written ahead of lower-priority data. */
+  INTERACTIVE,
+
+  NORMAL,
+
+  /**
+   * Large transfers whose latency doesn't matter. Their request bodies yield to other streams, and
+   * they don't share HTTP/2 connections with calls of other priorities. A bulk call that finds
+   * only busy connections carrying other calls opens a connection of its own.
+   */
+  BULK
+}
+
+internal val Request.priority: RequestPriority
+  get() = tag(RequestPriority::class.java) ?: RequestPriority.NORMAL
@@ -20,6 +20,7 @@ import java.io.IOException
 import java.io.InputStream
 import java.io.InputStreamReader
 import java.io.Reader
+import java.nio.ByteBuffer
 import java.nio.charset.Charset
 import kotlin.text.Charsets.UTF_8
 import okhttp3.MediaType.Companion.toMediaTypeOrNull
@@ -133,6 +134,33 @@ abstract class ResponseBody : Closeable {
   @Throws(IOException::class)
   fun byteString() = consumeSource(BufferedSource::readByteString) { it.size }
 
+  /**
+   * Streams the response body to [consumer] without copying it into arrays owned by the caller,
+   * and returns the number of bytes consumed. The body is closed afterwards.
+   *
+   * Each [ByteBuffer] is a read-only view of one segment of the body's buffer, in order. Views are
+   * only valid until [consumer] returns, after which their storage is recycled for later reads, so
+   * consumers must not retain them.
+   */
+  @Throws(IOException::class)
+  fun readSegments(consumer: (ByteBuffer) -> Unit): Long = source().use { source ->
+    val buffer = source.buffer
+    val cursor = Buffer.UnsafeCursor()
+    var byteCount = 0L
+    while (source.request(1L)) {
+      buffer.readUnsafe(cursor).use {
+        var length = it.next()
+        while (length != -1) {
+          consumer(ByteBuffer.wrap(it.data!!, it.start, length).asReadOnlyBuffer())
+          length = it.next()
+        }
+      }
+      byteCount += buffer.size
+      buffer.clear()
+    }
+    byteCount
+  }
+
   private inline fun <T : Any> consumeSource(
     consumer: (BufferedSource) -> T,
     sizeMapper: (T) -> Int
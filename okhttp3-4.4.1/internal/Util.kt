@@ -34,6 +34,8 @@ import java.util.Comparator
 import java.util.LinkedHashMap
 import java.util.Locale
 import java.util.TimeZone
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 import java.util.concurrent.ThreadFactory
 import java.util.concurrent.TimeUnit
 import kotlin.text.Charsets.UTF_32BE
@@ -106,6 +108,31 @@ fun threadFactory(
   }
 }
 
+/**
+ * True if the `okhttp.virtualThreads` system property asks for calls and tasks to run on virtual
+ * threads by default.
+ */
+@JvmField
+internal val virtualThreadsByDefault =
+    System.getProperty("okhttp.virtualThreads")?.toBoolean() ?: false
+
+/**
+ * Returns an executor that runs each task on a new virtual thread named [name], or null if this
+ * JVM doesn't have virtual threads. Blocking a virtual thread is cheap so these aren't pooled.
+ */
+fun virtualThreadExecutor(name: String): ExecutorService? {
+  return try {
+    val ofVirtualClass = Class.forName("java.lang.Thread\$Builder\$OfVirtual")
+    val ofVirtual = Thread::class.java.getMethod("ofVirtual").invoke(null)
+    ofVirtualClass.getMethod("name", String::class.java).invoke(ofVirtual, name)
+    val threadFactory = ofVirtualClass.getMethod("factory").invoke(ofVirtual) as ThreadFactory
+    Executors::class.java.getMethod("newThreadPerTaskExecutor", ThreadFactory::class.java)
+        .invoke(null, threadFactory) as ExecutorService
+  } catch (_: ReflectiveOperationException) {
+    null // Virtual threads need Java 21.
+  }
+}
+
 /**
  * Returns an array containing only elements found in this array and also in [other]. The returned
  * elements are in the same order as in this.
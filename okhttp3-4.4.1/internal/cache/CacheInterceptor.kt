@@ -26,6 +26,7 @@ import okhttp3.Interceptor
 import okhttp3.Protocol
 import okhttp3.Response
 import okhttp3.internal.EMPTY_RESPONSE
+import okhttp3.internal.cache2.RequestCoalescer
 import okhttp3.internal.closeQuietly
 import okhttp3.internal.discard
 import okhttp3.internal.http.ExchangeCodec
@@ -86,6 +87,24 @@ class CacheInterceptor(internal val cache: Cache?) : Interceptor {
           .build()
     }
 
+    // 相同的可缓存请求正在进行中 共享它的响应
+    var flight: RequestCoalescer.Flight? = null
+    if (cacheResponse == null && cache != null && cache.coalesceRequests &&
+        RequestCoalescer.isCoalescable(networkRequest)) {
+      flight = cache.requestCoalescer.join(chain.call(), networkRequest)
+      if (flight.leader !== chain.call()) {
+        val timeout = Timeout().timeout(
+            (chain.connectTimeoutMillis() + chain.readTimeoutMillis()).toLong(), MILLISECONDS)
+        val sharedResponse = flight.follow(networkRequest, timeout)
+        if (sharedResponse != null) {
+          return sharedResponse.newBuilder()
+              .networkResponse(stripBody(sharedResponse))
+              .build()
+        }
+        flight = null // Make our own request.
+      }
+    }
+
     var networkResponse: Response? = null
     try {
        // ======================== 前置工作 结束 =====================
@@ -97,6 +116,10 @@ class CacheInterceptor(internal val cache: Cache?) : Interceptor {
       if (networkResponse == null && cacheCandidate != null) {
         cacheCandidate.body?.closeQuietly()
       }
+      // Release followers, sharing the response body with them if possible.
+      if (flight != null) {
+        networkResponse = flight.complete(networkRequest, networkResponse)
+      }
     }
 
     // If we have a cache response too, then we're doing a conditional get.
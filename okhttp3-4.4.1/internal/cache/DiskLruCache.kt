@@ -33,7 +33,9 @@ import okhttp3.internal.io.FileSystem
 import okhttp3.internal.okHttpName
 import okhttp3.internal.platform.Platform
 import okhttp3.internal.platform.Platform.Companion.WARN
+import okio.Buffer
 import okio.BufferedSink
+import okio.BufferedSource
 import okio.Sink
 import okio.Source
 import okio.blackholeSink
@@ -108,43 +110,34 @@ class DiskLruCache internal constructor(
     }
 
   /*
-   * This cache uses a journal file named "journal". A typical journal file looks like this:
+   * This cache uses a binary journal file named "journal". The journal starts with a 16 byte
+   * header: the int [BINARY_MAGIC], the journal's version, the application's version and the value
+   * count.
    *
-   *     libcore.io.DiskLruCache
-   *     1
-   *     100
-   *     2
+   * Each subsequent record is the state of a cache entry: a one byte operation, a one byte key
+   * length, the key's ASCII bytes, and operation-specific values.
    *
-   *     CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832 21054
-   *     DIRTY 335c4c6028171cfddfbaae1a9c313c52
-   *     CLEAN 335c4c6028171cfddfbaae1a9c313c52 3934 2342
-   *     REMOVE 335c4c6028171cfddfbaae1a9c313c52
-   *     DIRTY 1ab96a171faeeee38496d8b330771a7a
-   *     CLEAN 1ab96a171faeeee38496d8b330771a7a 1600 234
-   *     READ 335c4c6028171cfddfbaae1a9c313c52
-   *     READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
+   *   o DIRTY records track that an entry is actively being created or updated. Every successful
+   *     DIRTY action should be followed by a CLEAN or REMOVE action. DIRTY records without a
+   *     matching CLEAN or REMOVE indicate that temporary files may need to be deleted.
    *
-   * The first five lines of the journal form its header. They are the constant string
-   * "libcore.io.DiskLruCache", the disk cache's version, the application's version, the value
-   * count, and a blank line.
+   *   o CLEAN records track a cache entry that has been successfully published and may be read. A
+   *     CLEAN record is followed by the lengths of each of its values, as 8 byte longs.
    *
-   * Each of the subsequent lines in the file is a record of the state of a cache entry. Each line
-   * contains space-separated values: a state, a key, and optional state-specific values.
+   *   o READ records track accesses for LRU.
    *
-   *   o DIRTY lines track that an entry is actively being created or updated. Every successful
-   *     DIRTY action should be followed by a CLEAN or REMOVE action. DIRTY lines without a matching
-   *     CLEAN or REMOVE indicate that temporary files may need to be deleted.
+   *   o REMOVE records track entries that have been deleted.
    *
-   *   o CLEAN lines track a cache entry that has been successfully published and may be read. A
-   *     publish line is followed by the lengths of each of its values.
-   *
-   *   o READ lines track accesses for LRU.
-   *
-   *   o REMOVE lines track entries that have been deleted.
-   *
-   * The journal file is appended to as cache operations occur. The journal may occasionally be
-   * compacted by dropping redundant lines. A temporary file named "journal.tmp" will be used during
+   * The journal file is appended to as cache operations occur. When redundant records dominate it
+   * is compacted: the live entries are written as a snapshot of CLEAN and DIRTY records in LRU
+   * order, followed by whatever was appended while the snapshot was written. Compaction bounds
+   * the journal to a small multiple of the live entry count, so opening the cache reads roughly
+   * one record per entry. A temporary file named "journal.tmp" holds the snapshot during
    * compaction; that file should be deleted if it exists when the cache is opened.
+   *
+   * Earlier releases wrote a UTF-8 journal with one record per line, starting with the line
+   * "libcore.io.DiskLruCache". Such journals are still read and are replaced with a binary journal
+   * when the cache is opened.
    */
 
   private val journalFile: File
@@ -156,6 +149,13 @@ class DiskLruCache internal constructor(
   private var redundantOpCount: Int = 0
   private var hasJournalErrors: Boolean = false
 
+  /**
+   * Records appended to the journal since a background compaction took its snapshot, or null if
+   * no compaction is running. These are copied after the snapshot before the journals are swapped.
+   */
+  private var compactionRecords: Buffer? = null
+  private var compactionRecordCount: Int = 0
+
   // Must be read and written when synchronized on 'this'.
   private var initialized: Boolean = false
   internal var closed: Boolean = false
@@ -165,13 +165,16 @@ class DiskLruCache internal constructor(
   /**
    * To differentiate between old and current snapshots, each entry is given a sequence number each
    * time an edit is committed. A snapshot is stale if its sequence number is not equal to its
-   * entry's sequence number.
+   * entry's sequence number. Entries read from the journal are numbered too, so no number is used
+   * twice by this instance.
    */
   private var nextSequenceNumber: Long = 0
 
   private val cleanupQueue = taskRunner.newQueue()
   private val cleanupTask = object : Task("$okHttpName Cache") {
     override fun runOnce(): Long {
+      val snapshot: Buffer
+      val records: Buffer
       synchronized(this@DiskLruCache) {
         if (!initialized || closed) {
           return -1L // Nothing to do.
@@ -183,18 +186,31 @@ class DiskLruCache internal constructor(
           mostRecentTrimFailed = true
         }
 
-        try {
-          if (journalRebuildRequired()) {
+        if (mostRecentRebuildFailed) {
+          // The journal writer may be gone. Rebuild while holding the lock so no records are lost.
+          try {
             rebuildJournal()
-            redundantOpCount = 0
+          } catch (_: IOException) {
+            mostRecentRebuildFailed = true
+            journalWriter = blackholeSink().buffer()
           }
-        } catch (_: IOException) {
-          mostRecentRebuildFailed = true
-          journalWriter = blackholeSink().buffer()
+          return -1L
         }
 
-        return -1L
+        if (!journalRebuildRequired() || compactionRecords != null) {
+          return -1L
+        }
+
+        // Encoding the live entries is cheap. Only the file I/O happens without the lock held.
+        snapshot = Buffer()
+        writeJournalSnapshot(snapshot)
+        records = Buffer()
+        compactionRecords = records
+        compactionRecordCount = 0
       }
+
+      compactJournal(snapshot, records)
+      return -1L
     }
   }
 
@@ -257,42 +273,118 @@ class DiskLruCache internal constructor(
   private fun readJournal() {
     // 文件系统
     fileSystem.source(journalFile).buffer().use { source ->
-      val magic = source.readUtf8LineStrict()
-      val version = source.readUtf8LineStrict()
-      val appVersionString = source.readUtf8LineStrict()
-      val valueCountString = source.readUtf8LineStrict()
-      val blank = source.readUtf8LineStrict()
-
-      if (MAGIC != magic ||
-          VERSION_1 != version ||
-          appVersion.toString() != appVersionString ||
-          valueCount.toString() != valueCountString ||
-          blank.isNotEmpty()) {
-        throw IOException(
-            "unexpected journal header: [$magic, $version, $valueCountString, $blank]")
-      }
-
-      var lineCount = 0
-      while (true) {
-        try {
-          readJournalLine(source.readUtf8LineStrict())
-          lineCount++
-        } catch (_: EOFException) {
-          break // End of journal.
+      val peek = source.peek()
+      if (peek.request(4L) && peek.readInt() == BINARY_MAGIC) {
+        readBinaryJournal(source)
+      } else {
+        readTextJournal(source)
+      }
+    }
+  }
+
+  @Throws(IOException::class)
+  private fun readBinaryJournal(source: BufferedSource) {
+    val magic = source.readInt()
+    val version = source.readInt()
+    val appVersionInt = source.readInt()
+    val valueCountInt = source.readInt()
+
+    if (BINARY_MAGIC != magic ||
+        VERSION_2 != version ||
+        appVersion != appVersionInt ||
+        valueCount != valueCountInt) {
+      throw IOException(
+          "unexpected journal header: [$magic, $version, $appVersionInt, $valueCountInt]")
+    }
+
+    var recordCount = 0
+    var truncated = false
+    while (!source.exhausted()) {
+      try {
+        readJournalRecord(source)
+        recordCount++
+      } catch (_: EOFException) {
+        truncated = true
+        break
+      }
+    }
+
+    redundantOpCount = recordCount - lruEntries.size
+
+    // If we ended on a truncated record, rebuild the journal before appending to it.
+    if (truncated) {
+      rebuildJournal()
+    } else {
+      journalWriter = newJournalWriter()
+    }
+  }
+
+  @Throws(IOException::class)
+  private fun readJournalRecord(source: BufferedSource) {
+    source.require(2L)
+    val op = source.readByte().toInt()
+    val keyLength = source.readByte().toLong() and 0xffL
+    val key = source.readUtf8(keyLength)
+
+    if (op == OP_REMOVE) {
+      lruEntries.remove(key)
+      return
+    }
+
+    val entry = lruEntries.getOrPut(key) { Entry(key) }
+
+    when (op) {
+      OP_CLEAN -> {
+        source.require(8L * valueCount)
+        for (i in 0 until valueCount) {
+          entry.lengths[i] = source.readLong()
         }
+        entry.readable = true
+        entry.currentEditor = null
+        entry.sequenceNumber = nextSequenceNumber++
       }
 
-      redundantOpCount = lineCount - lruEntries.size
+      OP_DIRTY -> {
+        entry.currentEditor = Editor(entry)
+      }
 
-      // If we ended on a truncated line, rebuild the journal before appending to it.
-      if (!source.exhausted()) {
-        rebuildJournal()
-      } else {
-        journalWriter = newJournalWriter()
+      OP_READ -> {
+        // This work was already done by calling lruEntries.getOrPut().
       }
+
+      else -> throw IOException("unexpected journal record: $op $key")
     }
   }
 
+  /** Reads a journal written by an earlier release, then replaces it with a binary journal. */
+  @Throws(IOException::class)
+  private fun readTextJournal(source: BufferedSource) {
+    val magic = source.readUtf8LineStrict()
+    val version = source.readUtf8LineStrict()
+    val appVersionString = source.readUtf8LineStrict()
+    val valueCountString = source.readUtf8LineStrict()
+    val blank = source.readUtf8LineStrict()
+
+    if (MAGIC != magic ||
+        VERSION_1 != version ||
+        appVersion.toString() != appVersionString ||
+        valueCount.toString() != valueCountString ||
+        blank.isNotEmpty()) {
+      throw IOException(
+          "unexpected journal header: [$magic, $version, $valueCountString, $blank]")
+    }
+
+    while (true) {
+      try {
+        readJournalLine(source.readUtf8LineStrict())
+      } catch (_: EOFException) {
+        break // End of journal.
+      }
+    }
+
+    rebuildJournal()
+  }
+
   @Throws(FileNotFoundException::class)
   private fun newJournalWriter(): BufferedSink {
     val fileSink = fileSystem.appendingSink(journalFile)
@@ -334,6 +426,7 @@ class DiskLruCache internal constructor(
         entry.readable = true
         entry.currentEditor = null
         entry.setLengths(parts)
+        entry.sequenceNumber = nextSequenceNumber++
       }
 
       secondSpace == -1 && firstSpace == DIRTY.length && line.startsWith(DIRTY) -> {
@@ -375,33 +468,77 @@ class DiskLruCache internal constructor(
 
   /**
    * Creates a new journal that omits redundant information. This replaces the current journal if it
-   * exists.
+   * exists. Any background compaction in progress is abandoned.
    */
   @Synchronized @Throws(IOException::class)
   internal fun rebuildJournal() {
+    compactionRecords = null
     journalWriter?.close()
 
     fileSystem.sink(journalFileTmp).buffer().use { sink ->
-      sink.writeUtf8(MAGIC).writeByte('\n'.toInt())
-      sink.writeUtf8(VERSION_1).writeByte('\n'.toInt())
-      sink.writeDecimalLong(appVersion.toLong()).writeByte('\n'.toInt())
-      sink.writeDecimalLong(valueCount.toLong()).writeByte('\n'.toInt())
-      sink.writeByte('\n'.toInt())
-
-      for (entry in lruEntries.values) {
-        if (entry.currentEditor != null) {
-          sink.writeUtf8(DIRTY).writeByte(' '.toInt())
-          sink.writeUtf8(entry.key)
-          sink.writeByte('\n'.toInt())
-        } else {
-          sink.writeUtf8(CLEAN).writeByte(' '.toInt())
-          sink.writeUtf8(entry.key)
-          entry.writeLengths(sink)
-          sink.writeByte('\n'.toInt())
+      writeJournalSnapshot(sink)
+    }
+
+    replaceJournal()
+    redundantOpCount = 0
+  }
+
+  /**
+   * Writes a snapshot to a temporary file without holding the lock, then appends [records] that
+   * were journaled in the meantime and swaps it in as the journal. Reads and edits proceed while
+   * the snapshot is written; they continue to be appended to the old journal until the swap so a
+   * crash never loses them.
+   */
+  private fun compactJournal(snapshot: Buffer, records: Buffer) {
+    var swapping = false
+    try {
+      fileSystem.sink(journalFileTmp).buffer().use { sink ->
+        sink.writeAll(snapshot)
+      }
+
+      synchronized(this) {
+        if (closed || compactionRecords !== records) {
+          return // Abandoned by close() or a synchronous rebuild.
+        }
+        compactionRecords = null
+
+        fileSystem.appendingSink(journalFileTmp).buffer().use { sink ->
+          sink.writeAll(records)
         }
+
+        swapping = true
+        journalWriter?.close()
+        replaceJournal()
+        redundantOpCount = compactionRecordCount
+      }
+    } catch (_: IOException) {
+      synchronized(this) {
+        if (compactionRecords === records) compactionRecords = null
+        mostRecentRebuildFailed = true
+        if (swapping) journalWriter = blackholeSink().buffer()
       }
     }
+  }
 
+  /** Writes the journal header followed by a record for each live entry, in LRU order. */
+  private fun writeJournalSnapshot(sink: BufferedSink) {
+    sink.writeInt(BINARY_MAGIC)
+    sink.writeInt(VERSION_2)
+    sink.writeInt(appVersion)
+    sink.writeInt(valueCount)
+
+    for (entry in lruEntries.values) {
+      if (entry.currentEditor != null) {
+        writeJournalRecord(sink, OP_DIRTY, entry.key, null)
+      } else {
+        writeJournalRecord(sink, OP_CLEAN, entry.key, entry.lengths)
+      }
+    }
+  }
+
+  /** Makes the temporary journal current, using the backup file to survive a crash midway. */
+  @Throws(IOException::class)
+  private fun replaceJournal() {
     if (fileSystem.exists(journalFile)) {
       fileSystem.rename(journalFile, journalFileBackup)
     }
@@ -413,6 +550,30 @@ class DiskLruCache internal constructor(
     mostRecentRebuildFailed = false
   }
 
+  /**
+   * Appends a record to the journal, and to the records of a running compaction so that it isn't
+   * lost when the compacted journal replaces this one.
+   */
+  private fun journal(op: Int, key: String, lengths: LongArray?) {
+    writeJournalRecord(journalWriter!!, op, key, lengths)
+    val compactionRecords = this.compactionRecords
+    if (compactionRecords != null) {
+      writeJournalRecord(compactionRecords, op, key, lengths)
+      compactionRecordCount++
+    }
+  }
+
+  private fun writeJournalRecord(sink: BufferedSink, op: Int, key: String, lengths: LongArray?) {
+    sink.writeByte(op)
+    sink.writeByte(key.length) // Keys are ASCII and at most 120 characters.
+    sink.writeUtf8(key)
+    if (lengths != null) {
+      for (length in lengths) {
+        sink.writeLong(length)
+      }
+    }
+  }
+
   /**
    * Returns a snapshot of the entry named [key], or null if it doesn't exist is not currently
    * readable. If a value is returned, it is moved to the head of the LRU queue.
@@ -428,10 +589,7 @@ class DiskLruCache internal constructor(
     val snapshot = entry.snapshot() ?: return null
 
     redundantOpCount++
-    journalWriter!!.writeUtf8(READ)
-        .writeByte(' '.toInt())
-        .writeUtf8(key)
-        .writeByte('\n'.toInt())
+    journal(OP_READ, key, null)
     if (journalRebuildRequired()) {
       cleanupQueue.schedule(cleanupTask)
     }
@@ -439,6 +597,21 @@ class DiskLruCache internal constructor(
     return snapshot
   }
 
+  /**
+   * Returns the sequence number of the readable entry named [key], or [ANY_SEQUENCE_NUMBER] if there
+   * is none. Like [get] this moves the entry to the head of the LRU queue, but it neither opens the
+   * entry's files nor journals the read.
+   */
+  @Synchronized @Throws(IOException::class)
+  internal fun readableSequenceNumber(key: String): Long {
+    initialize()
+
+    checkNotClosed()
+    val entry = lruEntries[key] ?: return ANY_SEQUENCE_NUMBER
+    if (!entry.readable) return ANY_SEQUENCE_NUMBER
+    return entry.sequenceNumber
+  }
+
   /** Returns an editor for the entry named [key], or null if another edit is in progress. */
   @Synchronized @Throws(IOException::class)
   @JvmOverloads
@@ -468,12 +641,8 @@ class DiskLruCache internal constructor(
     }
 
     // Flush the journal before creating files to prevent file leaks.
-    val journalWriter = this.journalWriter!!
-    journalWriter.writeUtf8(DIRTY)
-        .writeByte(' '.toInt())
-        .writeUtf8(key)
-        .writeByte('\n'.toInt())
-    journalWriter.flush()
+    journal(OP_DIRTY, key, null)
+    journalWriter!!.flush()
 
     if (hasJournalErrors) {
       return null // Don't edit; the journal can't be written.
@@ -535,24 +704,17 @@ class DiskLruCache internal constructor(
 
     redundantOpCount++
     entry.currentEditor = null
-    journalWriter!!.apply {
-      if (entry.readable || success) {
-        entry.readable = true
-        writeUtf8(CLEAN).writeByte(' '.toInt())
-        writeUtf8(entry.key)
-        entry.writeLengths(this)
-        writeByte('\n'.toInt())
-        if (success) {
-          entry.sequenceNumber = nextSequenceNumber++
-        }
-      } else {
-        lruEntries.remove(entry.key)
-        writeUtf8(REMOVE).writeByte(' '.toInt())
-        writeUtf8(entry.key)
-        writeByte('\n'.toInt())
+    if (entry.readable || success) {
+      entry.readable = true
+      journal(OP_CLEAN, entry.key, entry.lengths)
+      if (success) {
+        entry.sequenceNumber = nextSequenceNumber++
       }
-      flush()
+    } else {
+      lruEntries.remove(entry.key)
+      journal(OP_REMOVE, entry.key, null)
     }
+    journalWriter!!.flush()
 
     if (size > maxSize || journalRebuildRequired()) {
       cleanupQueue.schedule(cleanupTask)
@@ -598,10 +760,7 @@ class DiskLruCache internal constructor(
     }
 
     redundantOpCount++
-    journalWriter!!.writeUtf8(REMOVE)
-        .writeByte(' '.toInt())
-        .writeUtf8(entry.key)
-        .writeByte('\n'.toInt())
+    journal(OP_REMOVE, entry.key, null)
     lruEntries.remove(entry.key)
 
     if (journalRebuildRequired()) {
@@ -643,6 +802,7 @@ class DiskLruCache internal constructor(
     }
 
     trimToSize()
+    compactionRecords = null
     journalWriter!!.close()
     journalWriter = null
     closed = true
@@ -757,7 +917,7 @@ class DiskLruCache internal constructor(
   /** A snapshot of the values for an entry. */
   inner class Snapshot internal constructor(
     private val key: String,
-    private val sequenceNumber: Long,
+    internal val sequenceNumber: Long,
     private val sources: List<Source>,
     private val lengths: LongArray
   ) : Closeable {
@@ -932,14 +1092,6 @@ class DiskLruCache internal constructor(
       }
     }
 
-    /** Append space-prefixed lengths to [writer]. */
-    @Throws(IOException::class)
-    internal fun writeLengths(writer: BufferedSink) {
-      for (length in lengths) {
-        writer.writeByte(' '.toInt()).writeDecimalLong(length)
-      }
-    }
-
     @Throws(IOException::class)
     private fun invalidLengths(strings: List<String>): IOException {
       throw IOException("unexpected journal line: $strings")
@@ -988,5 +1140,12 @@ class DiskLruCache internal constructor(
     @JvmField val DIRTY = "DIRTY"
     @JvmField val REMOVE = "REMOVE"
     @JvmField val READ = "READ"
+    @JvmField val BINARY_MAGIC = 0x4f6b4443 // "OkDC"
+    @JvmField val VERSION_2 = 2
+
+    private const val OP_CLEAN = 1
+    private const val OP_DIRTY = 2
+    private const val OP_REMOVE = 3
+    private const val OP_READ = 4
   }
 }
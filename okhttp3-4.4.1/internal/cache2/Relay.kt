@@ -277,15 +277,22 @@ class Relay private constructor(
       fileOperator = null
 
       var fileToClose: RandomAccessFile? = null
+      var upstreamToClose: Source? = null
       synchronized(this@Relay) {
         sourceCount--
         if (sourceCount == 0) {
           fileToClose = file
           file = null
+          // No source remains to read upstream to its end. Release it so it doesn't leak.
+          if (!complete) {
+            upstreamToClose = upstream
+            upstream = null
+          }
         }
       }
 
       fileToClose?.closeQuietly()
+      upstreamToClose?.closeQuietly()
     }
   }
 
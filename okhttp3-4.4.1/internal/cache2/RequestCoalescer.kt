@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.cache2
+
+import java.io.File
+import java.io.IOException
+import java.io.InterruptedIOException
+import okhttp3.Call
+import okhttp3.Headers
+import okhttp3.HttpUrl
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.internal.cache.CacheStrategy
+import okhttp3.internal.http.RealResponseBody
+import okhttp3.internal.http.promisesBody
+import okhttp3.internal.io.FileSystem
+import okhttp3.internal.notifyAll
+import okio.ByteString
+import okio.ForwardingSource
+import okio.Source
+import okio.Timeout
+import okio.buffer
+
+/**
+ * Shares one network exchange between concurrent calls that make the same cacheable `GET`.
+ *
+ * The first call for a request leads a [Flight]: it makes the request and
+ * [completes][Flight.complete] the flight with its response. Calls that arrive while the flight is
+ * open [follow][Flight.follow] it instead of going to the network. If the response can be stored by
+ * the cache its body is teed through a [Relay] so every participant reads the same bytes, at its
+ * own pace. Otherwise followers make their own requests.
+ *
+ * Requests are identical if they have the same URL and the same headers. A flight stays open until
+ * every participant has closed its body, so late arrivals read what was already received from the
+ * relay's file in [directory]. Relay files are created and deleted with [fileSystem], though the
+ * relay itself reads and writes them directly.
+ */
+internal class RequestCoalescer(
+  private val fileSystem: FileSystem,
+  private val directory: File
+) {
+  /** Open flights by request. Guarded by this. */
+  private val flights = mutableMapOf<Key, Flight>()
+
+  /** True once relay files left behind by a previous process have been deleted. Guarded by this. */
+  private var initialized = false
+
+  /** Distinguishes the relay files of this coalescer's flights. Guarded by this. */
+  private var nextFileId = 0
+
+  /** The number of responses served by following another call's flight. Guarded by this. */
+  private var coalescedCount = 0
+
+  @Synchronized fun coalescedCount(): Int = coalescedCount
+
+  /**
+   * Deletes relay files that a previous process didn't get to delete. This runs before the first
+   * relay file is created, so none of them belongs to an open flight.
+   */
+  @Synchronized fun initialize() {
+    if (initialized) return
+    val staleFiles = directory.listFiles { _, name ->
+      name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)
+    }
+    for (file in staleFiles.orEmpty()) {
+      deleteQuietly(file)
+    }
+    initialized = true
+  }
+
+  /** Creates an empty relay file for a new flight. */
+  @Throws(IOException::class)
+  private fun newRelayFile(): File {
+    val file = synchronized(this) {
+      initialize()
+      File(directory, "$FILE_PREFIX${nextFileId++}$FILE_SUFFIX")
+    }
+    fileSystem.sink(file).close()
+    return file
+  }
+
+  /**
+   * Returns the open flight for [request]. If there is none this opens one led by [call], which
+   * must [complete][Flight.complete] it.
+   */
+  @Synchronized fun join(call: Call, request: Request): Flight {
+    val key = Key(request.url, request.headers)
+    return flights.getOrPut(key) { Flight(key, call) }
+  }
+
+  private fun deleteQuietly(file: File) {
+    try {
+      fileSystem.delete(file)
+    } catch (_: IOException) {
+    }
+  }
+
+  private data class Key(val url: HttpUrl, val headers: Headers)
+
+  inner class Flight internal constructor(
+    private val key: Key,
+    internal val leader: Call
+  ) {
+    // Guarded by this.
+    private var completed = false
+    private var response: Response? = null
+    private var relay: Relay? = null
+    private var file: File? = null
+
+    /**
+     * Publishes the leader's network response, or null if the request failed. Returns the
+     * response the leader should continue with, whose body may now be read from a relay.
+     */
+    fun complete(networkRequest: Request, networkResponse: Response?): Response? {
+      var result = networkResponse
+      var relay: Relay? = null
+      var file: File? = null
+
+      if (networkResponse != null && isShareable(networkRequest, networkResponse)) {
+        try {
+          file = newRelayFile()
+          relay = Relay.edit(
+              file, networkResponse.body!!.source(), ByteString.EMPTY, RELAY_BUFFER_SIZE)
+          result = networkResponse.withBody(relay.newSource()!!, relay, file)
+        } catch (_: IOException) {
+          if (file != null) deleteQuietly(file)
+          relay = null
+          // Fall back to an unshared response.
+        }
+      }
+
+      synchronized(this) {
+        completed = true
+        this.relay = relay
+        this.file = file
+        this.response = if (relay != null) shareableCopy(networkResponse!!) else null
+        this.notifyAll()
+      }
+      if (relay == null) close()
+      return result
+    }
+
+    /**
+     * Waits for the leader's response and returns a copy that reads the shared body. Returns null
+     * if the caller should make its own request, either because the response can't be shared or
+     * because [timeout] elapsed first.
+     */
+    fun follow(request: Request, timeout: Timeout): Response? {
+      val response: Response
+      val relay: Relay
+      val file: File
+      synchronized(this) {
+        try {
+          while (!completed) {
+            timeout.waitUntilNotified(this)
+          }
+        } catch (_: InterruptedIOException) {
+          return null // Stop waiting on a slow leader.
+        }
+        response = this.response ?: return null
+        relay = this.relay!!
+        file = this.file!!
+      }
+
+      // Null if every participant already closed its body.
+      val source = relay.newSource() ?: return null
+      synchronized(this@RequestCoalescer) {
+        coalescedCount++
+      }
+      return response.newBuilder()
+          .request(request)
+          .build()
+          .withBody(source, relay, file)
+    }
+
+    /**
+     * Returns [networkResponse] without its body or its exchange. The exchange belongs to the
+     * leader's call, so followers must not read trailers from it or release it.
+     */
+    private fun shareableCopy(networkResponse: Response): Response {
+      return networkResponse.newBuilder()
+          .body(null)
+          .apply { exchange = null }
+          .build()
+    }
+
+    private fun Response.withBody(source: Source, relay: Relay, file: File): Response {
+      val contentType = header("Content-Type")
+      val contentLength = body?.contentLength() ?: header("Content-Length")?.toLongOrNull() ?: -1L
+      val flightSource = object : ForwardingSource(source) {
+        @Throws(IOException::class)
+        override fun close() {
+          super.close()
+          if (relay.isClosed) {
+            deleteQuietly(file)
+            this@Flight.close()
+          }
+        }
+      }
+      return newBuilder()
+          .body(RealResponseBody(contentType, contentLength, flightSource.buffer()))
+          .build()
+    }
+
+    /** Stops new calls from joining this flight. */
+    private fun close() {
+      synchronized(this@RequestCoalescer) {
+        if (flights[key] === this) flights.remove(key)
+      }
+    }
+  }
+
+  companion object {
+    private const val FILE_PREFIX = "coalesced"
+    private const val FILE_SUFFIX = ".tmp"
+    private const val RELAY_BUFFER_SIZE = 64L * 1024L
+
+    /**
+     * Returns true if [request] may share a network exchange with identical requests. Requests
+     * that insist on a fresh response from the origin, with `no-cache` or `max-age=0`, don't wait
+     * for a response that another call asked for earlier.
+     */
+    fun isCoalescable(request: Request): Boolean {
+      val cacheControl = request.cacheControl
+      return request.method == "GET" &&
+          !cacheControl.noStore &&
+          !cacheControl.noCache &&
+          cacheControl.maxAgeSeconds != 0
+    }
+
+    /** Only responses the cache could store are shared. Everything else is private to a call. */
+    private fun isShareable(request: Request, response: Response): Boolean {
+      return response.code == 200 &&
+          response.promisesBody() &&
+          CacheStrategy.isCacheable(response, request)
+    }
+  }
+}
@@ -15,6 +15,7 @@
  */
 package okhttp3.internal.concurrent
 
+import java.util.concurrent.ExecutorService
 import java.util.concurrent.SynchronousQueue
 import java.util.concurrent.ThreadFactory
 import java.util.concurrent.ThreadPoolExecutor
@@ -27,6 +28,8 @@ import okhttp3.internal.concurrent.TaskRunner.Companion.INSTANCE
 import okhttp3.internal.notify
 import okhttp3.internal.okHttpName
 import okhttp3.internal.threadFactory
+import okhttp3.internal.virtualThreadExecutor
+import okhttp3.internal.virtualThreadsByDefault
 
 /**
  * A set of worker threads that are shared among a set of task queues.
@@ -263,14 +266,14 @@ class TaskRunner(
     fun execute(runnable: Runnable)
   }
 
-  class RealBackend(threadFactory: ThreadFactory) : Backend {
-    private val executor = ThreadPoolExecutor(
+  class RealBackend(private val executor: ExecutorService) : Backend {
+    constructor(threadFactory: ThreadFactory) : this(ThreadPoolExecutor(
         0, // corePoolSize.
         Int.MAX_VALUE, // maximumPoolSize.
         60L, TimeUnit.SECONDS, // keepAliveTime.
         SynchronousQueue(),
         threadFactory
-    )
+    ))
 
     override fun beforeTask(taskRunner: TaskRunner) {
     }
@@ -305,8 +308,23 @@ class TaskRunner(
   }
 
   companion object {
+    /**
+     * Runs tasks on virtual threads if the `okhttp.virtualThreads` system property is true and the
+     * JVM has them. Otherwise it uses a pool of daemon platform threads. Before Java 24 a task
+     * that waits on a monitor pins its carrier thread, so see the caveats on
+     * [Dispatcher.virtualThreads][okhttp3.Dispatcher.virtualThreads].
+     */
     @JvmField
-    val INSTANCE = TaskRunner(RealBackend(threadFactory("$okHttpName TaskRunner", daemon = true)))
+    val INSTANCE = TaskRunner(newRealBackend("$okHttpName TaskRunner"))
+
+    private fun newRealBackend(name: String): RealBackend {
+      val virtualThreadExecutor = if (virtualThreadsByDefault) virtualThreadExecutor(name) else null
+      return if (virtualThreadExecutor != null) {
+        RealBackend(virtualThreadExecutor)
+      } else {
+        RealBackend(threadFactory(name, daemon = true))
+      }
+    }
 
     val logger: Logger = Logger.getLogger(TaskRunner::class.java.name)
   }
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.concurrent
+
+import okhttp3.internal.notify
+import okhttp3.internal.okHttpName
+
+/**
+ * A hierarchical timing wheel that fires [WheelTimeout]s from a single daemon thread.
+ *
+ * Okio's `AsyncTimeout` keeps pending timeouts in a list sorted by deadline, so entering a timeout
+ * costs time proportional to the number of pending timeouts. Here deadlines are measured in ticks
+ * of [TICK_NANOS] and a timeout is linked into the slot of the wheel that covers its deadline.
+ * Scheduling and canceling are constant time, whatever the number of concurrent calls.
+ *
+ * There are [LEVELS] wheels of [SLOTS] slots each. Level 0 has a slot for each of the next
+ * [SLOTS] ticks, level 1 a slot for each run of [SLOTS] ticks after that, and so on. A timeout is
+ * placed on the level of the most significant digit in which its deadline differs from the current
+ * tick. When the current tick reaches a higher level slot, its timeouts cascade to lower levels.
+ * Bitmaps of occupied slots let the driver sleep until the next slot that needs attention rather
+ * than waking every tick.
+ *
+ * Timeouts fire up to one tick late, and never early.
+ */
+internal class TimeoutWheel {
+  private val startNs = System.nanoTime()
+
+  /** The head of each slot's doubly-linked list, indexed by `level * SLOTS + slot`. */
+  private val heads = arrayOfNulls<WheelTimeout>(LEVELS * SLOTS)
+
+  /** For each level, a bit for every slot that has timeouts. */
+  private val occupied = LongArray(LEVELS)
+
+  /** The next tick to process. Every earlier tick has fired. */
+  private var currentTick = 0L
+
+  private var size = 0
+  private var driverStarted = false
+
+  /** The tick the driver is sleeping until, so new timeouts only wake it if they're sooner. */
+  private var wakeTick = Long.MAX_VALUE
+
+  /** Schedules [timeout] to fire at [deadlineNanoTime]. */
+  @Synchronized fun schedule(timeout: WheelTimeout, deadlineNanoTime: Long) {
+    val untilDeadlineNs = maxOf(deadlineNanoTime - startNs, 0L)
+    timeout.deadlineTick = minOf((untilDeadlineNs + TICK_NANOS - 1) / TICK_NANOS, MAX_TICK)
+    timeout.state = WheelTimeout.SCHEDULED
+    insert(timeout)
+    size++
+
+    if (!driverStarted) {
+      driverStarted = true
+      Driver().start()
+    } else if (timeout.deadlineTick < wakeTick) {
+      notify()
+    }
+  }
+
+  /** Cancels [timeout]. Returns true if it fired before it could be canceled. */
+  @Synchronized fun cancel(timeout: WheelTimeout): Boolean {
+    val state = timeout.state
+    timeout.state = WheelTimeout.IDLE
+    return when (state) {
+      WheelTimeout.SCHEDULED -> {
+        unlink(timeout)
+        size--
+        false
+      }
+      WheelTimeout.TIMED_OUT -> true
+      else -> false
+    }
+  }
+
+  private fun insert(timeout: WheelTimeout) {
+    val tick = maxOf(timeout.deadlineTick, currentTick)
+    val differingBits = tick xor currentTick
+    val level = when (differingBits) {
+      0L -> 0
+      else -> (63 - java.lang.Long.numberOfLeadingZeros(differingBits)) / BITS
+    }
+    val slot = ((tick ushr (level * BITS)) and MASK).toInt()
+    val index = level * SLOTS + slot
+
+    val head = heads[index]
+    timeout.slotIndex = index
+    timeout.previous = null
+    timeout.next = head
+    head?.previous = timeout
+    heads[index] = timeout
+    occupied[level] = occupied[level] or (1L shl slot)
+  }
+
+  private fun unlink(timeout: WheelTimeout) {
+    val index = timeout.slotIndex
+    val previous = timeout.previous
+    val next = timeout.next
+    if (previous != null) previous.next = next else heads[index] = next
+    next?.previous = previous
+    timeout.previous = null
+    timeout.next = null
+
+    if (heads[index] == null) {
+      val level = index / SLOTS
+      occupied[level] = occupied[level] and (1L shl (index % SLOTS)).inv()
+    }
+  }
+
+  /** Removes and returns the timeouts in the slot at [index], as a list linked by `next`. */
+  private fun detach(index: Int): WheelTimeout? {
+    val head = heads[index] ?: return null
+    heads[index] = null
+    val level = index / SLOTS
+    occupied[level] = occupied[level] and (1L shl (index % SLOTS)).inv()
+    return head
+  }
+
+  /**
+   * Returns the earliest tick at which an occupied slot must be processed, or -1 if there are no
+   * timeouts. Every occupied slot of a level is at or after that level's digit of the current tick.
+   */
+  private fun nextEventTick(): Long {
+    var result = -1L
+    for (level in 0 until LEVELS) {
+      val bits = occupied[level]
+      if (bits == 0L) continue
+      val shift = level * BITS
+      val digit = ((currentTick ushr shift) and MASK).toInt()
+      val slotsAtOrAfter = bits and (-1L shl digit)
+      val slot = java.lang.Long.numberOfTrailingZeros(
+          if (slotsAtOrAfter != 0L) slotsAtOrAfter else bits)
+      val prefix = currentTick and (-1L shl (shift + BITS))
+      val tick = maxOf(prefix or (slot.toLong() shl shift), currentTick)
+      if (result == -1L || tick < result) result = tick
+    }
+    return result
+  }
+
+  /**
+   * Advances to [tick], skipping the ticks before it which have no work. Returns the timeouts
+   * that expired, which are now [WheelTimeout.TIMED_OUT].
+   */
+  private fun process(tick: Long): List<WheelTimeout> {
+    currentTick = tick
+
+    // Cascade higher levels first so their timeouts can land in the slots processed below.
+    for (level in LEVELS - 1 downTo 1) {
+      val slot = ((tick ushr (level * BITS)) and MASK).toInt()
+      var timeout = detach(level * SLOTS + slot)
+      while (timeout != null) {
+        val next = timeout.next
+        insert(timeout)
+        timeout = next
+      }
+    }
+
+    val expired = mutableListOf<WheelTimeout>()
+    var timeout = detach((tick and MASK).toInt())
+    while (timeout != null) {
+      val next = timeout.next
+      timeout.previous = null
+      timeout.next = null
+      timeout.state = WheelTimeout.TIMED_OUT
+      expired += timeout
+      size--
+      timeout = next
+    }
+
+    currentTick = tick + 1
+    return expired
+  }
+
+  /**
+   * Waits for the next timeouts to expire and returns them. Returns an empty list if it woke up
+   * without any, and null if the wheel was idle long enough for the driver to exit.
+   */
+  private fun awaitExpired(): List<WheelTimeout>? {
+    val nextTick = nextEventTick()
+    if (nextTick == -1L) {
+      val idleStartNs = System.nanoTime()
+      waitNanos(IDLE_TIMEOUT_NANOS)
+      if (size == 0 && System.nanoTime() - idleStartNs >= IDLE_TIMEOUT_NANOS) {
+        driverStarted = false
+        return null
+      }
+      return emptyList()
+    }
+
+    val waitNanos = startNs + nextTick * TICK_NANOS - System.nanoTime()
+    if (waitNanos > 0L) {
+      wakeTick = nextTick
+      waitNanos(waitNanos)
+      wakeTick = Long.MAX_VALUE
+      return emptyList()
+    }
+
+    return process(nextTick)
+  }
+
+  @Throws(InterruptedException::class)
+  @Suppress("PLATFORM_CLASS_MAPPED_TO_KOTLIN")
+  private fun waitNanos(nanos: Long) {
+    val ms = nanos / 1_000_000L
+    val ns = nanos - (ms * 1_000_000L)
+    (this as Object).wait(ms, ns.toInt())
+  }
+
+  private inner class Driver : Thread("$okHttpName TimeoutWheel") {
+    init {
+      isDaemon = true
+    }
+
+    override fun run() {
+      while (true) {
+        try {
+          val expired = synchronized(this@TimeoutWheel) {
+            awaitExpired()
+          } ?: return
+
+          // Fire outside of the lock: timeouts may cancel calls and close streams.
+          for (timeout in expired) {
+            timeout.timedOut()
+          }
+        } catch (_: InterruptedException) {
+          // Ignored.
+        }
+      }
+    }
+  }
+
+  companion object {
+    const val TICK_NANOS = 1_000_000L // 1 ms.
+
+    private const val BITS = 6
+    const val SLOTS = 1 shl BITS
+    private const val MASK = (SLOTS - 1).toLong()
+    const val LEVELS = 10
+
+    /** Ticks beyond this are clamped. It is more than 10 million years away. */
+    private const val MAX_TICK = (1L shl (BITS * LEVELS)) - 1L
+
+    private const val IDLE_TIMEOUT_NANOS = 60_000_000_000L // 60 seconds.
+
+    @JvmField
+    val INSTANCE = TimeoutWheel()
+  }
+}
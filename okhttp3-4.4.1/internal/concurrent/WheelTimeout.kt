@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.concurrent
+
+import java.io.IOException
+import java.io.InterruptedIOException
+import okio.Timeout
+
+/**
+ * A timeout that calls [timedOut] from a [TimeoutWheel] if it isn't exited in time. It is used
+ * like Okio's `AsyncTimeout`: call [enter] before an operation and [exit] after it.
+ *
+ * Entering and exiting are constant time, so calls and streams can enter timeouts freely even with
+ * very many of them in flight.
+ */
+internal open class WheelTimeout(
+  private val wheel: TimeoutWheel = TimeoutWheel.INSTANCE
+) : Timeout() {
+  // All guarded by wheel.
+  internal var state = IDLE
+  internal var deadlineTick = 0L
+  internal var slotIndex = 0
+  internal var previous: WheelTimeout? = null
+  internal var next: WheelTimeout? = null
+
+  fun enter() {
+    val timeoutNanos = timeoutNanos()
+    val hasDeadline = hasDeadline()
+    if (timeoutNanos == 0L && !hasDeadline) {
+      return // No timeout and no deadline? Don't bother with the wheel.
+    }
+
+    val now = System.nanoTime()
+    val deadlineNanoTime = when {
+      timeoutNanos != 0L && hasDeadline -> now + minOf(timeoutNanos, deadlineNanoTime() - now)
+      timeoutNanos != 0L -> now + timeoutNanos
+      else -> deadlineNanoTime()
+    }
+    synchronized(wheel) {
+      check(state == IDLE) { "Unbalanced enter/exit" }
+      wheel.schedule(this, deadlineNanoTime)
+    }
+  }
+
+  /** Returns true if the timeout occurred. */
+  fun exit(): Boolean = wheel.cancel(this)
+
+  /**
+   * Invoked by the wheel's thread when the time between calls to [enter] and [exit] has exceeded
+   * the timeout. This must not block.
+   */
+  internal open fun timedOut() {}
+
+  /**
+   * Returns an [IOException] to represent a timeout. By default this method returns
+   * [InterruptedIOException]. If [cause] is non-null it is set as the cause of the returned
+   * exception.
+   */
+  internal open fun newTimeoutException(cause: IOException?): IOException {
+    val e = InterruptedIOException("timeout")
+    if (cause != null) {
+      e.initCause(cause)
+    }
+    return e
+  }
+
+  companion object {
+    const val IDLE = 0
+    const val SCHEDULED = 1
+    const val TIMED_OUT = 2
+  }
+}
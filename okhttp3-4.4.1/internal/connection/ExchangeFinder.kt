@@ -16,7 +16,10 @@
 package okhttp3.internal.connection
 
 import java.io.IOException
+import java.io.InterruptedIOException
 import java.net.Socket
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
 import okhttp3.Address
 import okhttp3.EventListener
 import okhttp3.HttpUrl
@@ -26,11 +29,13 @@ import okhttp3.internal.assertThreadDoesntHoldLock
 import okhttp3.internal.assertThreadHoldsLock
 import okhttp3.internal.canReuseConnectionFor
 import okhttp3.internal.closeQuietly
+import okhttp3.internal.concurrent.TaskRunner
 import okhttp3.internal.http.ExchangeCodec
 import okhttp3.internal.http.RealInterceptorChain
 import okhttp3.internal.http2.ConnectionShutdownException
 import okhttp3.internal.http2.ErrorCode
 import okhttp3.internal.http2.StreamResetException
+import okhttp3.internal.okHttpName
 
 /**
  * Attempts to find the connections for an exchange and any retries that follow. This uses the
@@ -62,7 +67,7 @@ class ExchangeFinder(
 
   // State guarded by connectionPool.
   private var routeSelector: RouteSelector? = null
-  private var connectingConnection: RealConnection? = null
+  private val connectingConnections = mutableListOf<RealConnection>()
   private var refusedStreamCount = 0
   private var connectionShutdownCount = 0
   private var otherFailureCount = 0
@@ -198,7 +203,8 @@ class ExchangeFinder(
     if (selectedRoute == null && (routeSelection == null || !routeSelection!!.hasNext())) {
       var localRouteSelector = routeSelector
       if (localRouteSelector == null) {
-        localRouteSelector = RouteSelector(address, call.client.routeDatabase, call, eventListener)
+        localRouteSelector = RouteSelector(address, call.client.routeDatabase, call, eventListener,
+            call.client.fastFallback)
         this.routeSelector = localRouteSelector
       }
       newRouteSelection = true
@@ -239,7 +245,7 @@ class ExchangeFinder(
         // for an asynchronous cancel() to interrupt the handshake we're about to do.
         // 创建连接
         result = RealConnection(connectionPool, selectedRoute!!)
-        connectingConnection = result
+        connectingConnections += result!!
       }
     }
 
@@ -250,22 +256,29 @@ class ExchangeFinder(
 
     // Do TCP + TLS handshakes. This is a blocking operation.
     // 4. 手动创建连接 TCP和TLS握手
-    result!!.connect(
-        connectTimeout,
-        readTimeout,
-        writeTimeout,
-        pingIntervalMillis,
-        connectionRetryEnabled,
-        call,
-        eventListener
-    )
+    if (call.client.fastFallback && routeSelection?.hasNext() == true) {
+      // 并发尝试多个路由 使用最先建立的连接
+      result = connectFastFallback(result!!, connectTimeout, readTimeout, writeTimeout,
+          pingIntervalMillis, connectionRetryEnabled)
+      selectedRoute = result!!.route()
+    } else {
+      result!!.connect(
+          connectTimeout,
+          readTimeout,
+          writeTimeout,
+          pingIntervalMillis,
+          connectionRetryEnabled,
+          call,
+          eventListener
+      )
+    }
     // 放入Database
     call.client.routeDatabase.connected(result!!.route())
 
     var socket: Socket? = null
     // 线程安全
     synchronized(connectionPool) {
-      connectingConnection = null
+      connectingConnections.clear()
       // Last attempt at connection coalescing, which only occurs if we attempted multiple
       // concurrent connections to the same host.
       // 5. 只多路复用模式再次尝试获取连接 HTTP2的连接
@@ -292,9 +305,134 @@ class ExchangeFinder(
     return result!!
   }
 
-  fun connectingConnection(): RealConnection? {
+  /**
+   * Connects [firstConnection] like [RealConnection.connect], but races it against connections to
+   * the following routes of [routeSelection]. Another attempt starts whenever the latest one hasn't
+   * finished after [FAST_FALLBACK_DELAY_MILLIS] or as soon as an attempt fails. The first
+   * connection to succeed is returned and the others are canceled.
+   */
+  @Throws(IOException::class)
+  private fun connectFastFallback(
+    firstConnection: RealConnection,
+    connectTimeout: Int,
+    readTimeout: Int,
+    writeTimeout: Int,
+    pingIntervalMillis: Int,
+    connectionRetryEnabled: Boolean
+  ): RealConnection {
+    val outcomes = LinkedBlockingQueue<ConnectOutcome>()
+    val attempts = mutableListOf<RealConnection>()
+    var raceOver = false // Guarded by outcomes.
+
+    fun startAttempt(connection: RealConnection) {
+      attempts += connection
+      TaskRunner.INSTANCE.newQueue().execute("$okHttpName connect ${connection.route()}") {
+        var failure: RouteException? = null
+        var unexpected: Throwable? = null
+        try {
+          connection.connect(connectTimeout, readTimeout, writeTimeout, pingIntervalMillis,
+              connectionRetryEnabled, call, eventListener)
+        } catch (e: RouteException) {
+          failure = e
+        } catch (e: Throwable) {
+          // Always post an outcome, otherwise the caller waits for this attempt forever.
+          unexpected = e
+        }
+        val lostRace = synchronized(outcomes) {
+          if (!raceOver) outcomes.put(ConnectOutcome(connection, failure, unexpected))
+          raceOver
+        }
+        if (lostRace) {
+          // Nobody is waiting for this attempt anymore. Don't leak its socket.
+          connection.cancel()
+          if (unexpected != null) throw unexpected
+        }
+      }
+    }
+
+    fun startNextAttempt() {
+      val connection = synchronized(connectionPool) {
+        if (call.isCanceled()) throw IOException("Canceled")
+        RealConnection(connectionPool, routeSelection!!.next()).also { connectingConnections += it }
+      }
+      startAttempt(connection)
+    }
+
+    var winner: RealConnection? = null
+    var routeException: RouteException? = null
+    try {
+      startAttempt(firstConnection)
+      var pendingCount = 1
+      while (pendingCount > 0) {
+        val outcome = if (routeSelection!!.hasNext()) {
+          outcomes.poll(FAST_FALLBACK_DELAY_MILLIS, TimeUnit.MILLISECONDS)
+        } else {
+          outcomes.take()
+        }
+
+        if (outcome == null) {
+          // The latest attempt is slow. Race it against the next route.
+          startNextAttempt()
+          pendingCount++
+          continue
+        }
+
+        pendingCount--
+        val unexpected = outcome.unexpected
+        if (unexpected != null) throw unexpected
+        val failure = outcome.failure
+        if (failure == null) {
+          winner = outcome.connection
+          break
+        }
+
+        // An attempt that failed because it was canceled says nothing about its route.
+        if (call.isCanceled()) throw IOException("Canceled")
+
+        outcome.connection.connectFailed(call.client, outcome.connection.route(),
+            failure.lastConnectException)
+        if (routeException == null) {
+          routeException = failure
+        } else {
+          routeException.addConnectException(failure.lastConnectException)
+        }
+        if (routeSelection!!.hasNext()) {
+          startNextAttempt()
+          pendingCount++
+        }
+      }
+    } catch (e: InterruptedException) {
+      Thread.currentThread().interrupt()
+      throw InterruptedIOException("interrupted while connecting")
+    } finally {
+      // Attempts that complete from here on cancel themselves. Cancel the ones already queued or
+      // still connecting.
+      synchronized(outcomes) {
+        raceOver = true
+      }
+      for (attempt in attempts) {
+        if (attempt !== winner) attempt.cancel()
+      }
+      synchronized(connectionPool) {
+        connectingConnections.removeAll { it !== winner }
+      }
+    }
+
+    return winner ?: throw routeException!!
+  }
+
+  private class ConnectOutcome(
+    val connection: RealConnection,
+    /** Null if [connection] connected successfully. */
+    val failure: RouteException?,
+    /** A failure that wasn't an I/O problem with the route, to be rethrown on the calling thread. */
+    val unexpected: Throwable? = null
+  )
+
+  /** Returns the connections currently being established. Canceling the call cancels these. */
+  fun connectingConnections(): List<RealConnection> {
     connectionPool.assertThreadHoldsLock()
-    return connectingConnection
+    return connectingConnections.toList()
   }
 
   fun trackFailure(e: IOException) {
@@ -368,4 +506,9 @@ class ExchangeFinder(
     val routeUrl = address.url
     return url.port == routeUrl.port && url.host == routeUrl.host
   }
+
+  companion object {
+    /** How long to wait for a connection attempt before racing it. RFC 8305 recommends 250 ms. */
+    const val FAST_FALLBACK_DELAY_MILLIS = 250L
+  }
 }
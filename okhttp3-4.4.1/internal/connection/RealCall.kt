@@ -32,21 +32,19 @@ import okhttp3.CertificatePinner
 import okhttp3.Connection
 import okhttp3.EventListener
 import okhttp3.HttpUrl
-import okhttp3.Interceptor
 import okhttp3.OkHttpClient
 import okhttp3.Request
+import okhttp3.RequestPriority
 import okhttp3.Response
 import okhttp3.internal.assertThreadDoesntHoldLock
 import okhttp3.internal.assertThreadHoldsLock
-import okhttp3.internal.cache.CacheInterceptor
 import okhttp3.internal.closeQuietly
-import okhttp3.internal.http.BridgeInterceptor
-import okhttp3.internal.http.CallServerInterceptor
+import okhttp3.internal.concurrent.WheelTimeout
 import okhttp3.internal.http.RealInterceptorChain
-import okhttp3.internal.http.RetryAndFollowUpInterceptor
 import okhttp3.internal.platform.Platform
 import okhttp3.internal.threadName
-import okio.AsyncTimeout
+import okhttp3.priority
+import okio.Timeout
 
 /**
  * Bridge between OkHttp's application and network layers. This class exposes high-level application
@@ -67,7 +65,7 @@ class RealCall(
 
   private val eventListener: EventListener = client.eventListenerFactory.create(this)
 
-  private val timeout = object : AsyncTimeout() {
+  private val timeout = object : WheelTimeout() {
     override fun timedOut() {
       cancel()
     }
@@ -101,7 +99,14 @@ class RealCall(
   internal var interceptorScopedExchange: Exchange? = null
     private set
 
-  override fun timeout() = timeout
+  /**
+   * The priority of the request being sent, as seen after the application interceptors. Both the
+   * connection pool and the HTTP/2 stream use this, so they always agree.
+   */
+  @Volatile internal var priority = RequestPriority.NORMAL
+    private set
+
+  override fun timeout(): Timeout = timeout
 
   @SuppressWarnings("CloneDoesntCallSuperClone") // We are a final type & this saves clearing state.
   override fun clone() = RealCall(client, originalRequest, forWebSocket)
@@ -119,14 +124,19 @@ class RealCall(
    */
   override fun cancel() {
     val exchangeToCancel: Exchange?
-    val connectionToCancel: RealConnection?
+    val connectionsToCancel: List<RealConnection>
     synchronized(connectionPool) {
       if (canceled) return // Already canceled.
       canceled = true
       exchangeToCancel = exchange
-      connectionToCancel = exchangeFinder?.connectingConnection() ?: connection
+      connectionsToCancel = exchangeFinder?.connectingConnections()?.takeIf { it.isNotEmpty() }
+          ?: listOfNotNull(connection)
+    }
+    if (exchangeToCancel != null) {
+      exchangeToCancel.cancel()
+    } else {
+      for (connection in connectionsToCancel) connection.cancel()
     }
-    exchangeToCancel?.cancel() ?: connectionToCancel?.cancel()
     eventListener.canceled(this)
   }
 
@@ -169,19 +179,8 @@ class RealCall(
 
   @Throws(IOException::class) // 核心方法
   internal fun getResponseWithInterceptorChain(): Response {
-    // 拦截器集合
-    val interceptors = mutableListOf<Interceptor>()
-    // 可以添加自定义Interceptor
-    interceptors += client.interceptors // 可以自定义拦截器  eg.添加header
-    interceptors += RetryAndFollowUpInterceptor(client) // 重试和重定向
-    interceptors += BridgeInterceptor(client.cookieJar) // 桥接 
-    interceptors += CacheInterceptor(client.cache) // 缓存
-    interceptors += ConnectInterceptor // 连接
-    if (!forWebSocket) {
-      // 网络调试使用  不能用来改变request 
-      interceptors += client.networkInterceptors
-    }
-    interceptors += CallServerInterceptor(forWebSocket) // 请求
+    // 拦截器集合 每个client只构建一次
+    val interceptors = if (forWebSocket) client.webSocketInterceptors else client.callInterceptors
 
     val chain = RealInterceptorChain(
         call = this,
@@ -228,11 +227,13 @@ class RealCall(
           "please call response.close()"
     }
 
+    this.priority = request.priority
+
     if (newExchangeFinder) {
       // 创建ExchangeFinder
       this.exchangeFinder = ExchangeFinder(
           connectionPool,
-          createAddress(request.url),// 创建Address对象 主机名和端口信息
+          client.createAddress(request.url),// 创建Address对象 主机名和端口信息
           this,
           eventListener
       )
@@ -415,34 +416,6 @@ class RealCall(
     interceptorScopedExchange = null
   }
 
-  // 创建Address
-  private fun createAddress(url: HttpUrl): Address {
-    var sslSocketFactory: SSLSocketFactory? = null
-    var hostnameVerifier: HostnameVerifier? = null
-    var certificatePinner: CertificatePinner? = null
-    if (url.isHttps) {
-      // Https类型的
-      sslSocketFactory = client.sslSocketFactory
-      hostnameVerifier = client.hostnameVerifier
-      certificatePinner = client.certificatePinner
-    }
-
-    return Address(
-        uriHost = url.host, //主机名
-        uriPort = url.port, //端口号 Http->80 Https->443
-        dns = client.dns,
-        socketFactory = client.socketFactory,
-        sslSocketFactory = sslSocketFactory,
-        hostnameVerifier = hostnameVerifier,
-        certificatePinner = certificatePinner,
-        proxyAuthenticator = client.proxyAuthenticator,
-        proxy = client.proxy,
-        protocols = client.protocols,
-        connectionSpecs = client.connectionSpecs,
-        proxySelector = client.proxySelector
-    )
-  }
-
   fun retryAfterFailure() = exchangeFinder!!.retryAfterFailure()
 
   /**
@@ -467,6 +440,10 @@ class RealCall(
       this.callsPerHost = other.callsPerHost
     }
 
+    fun reuseCallsPerHostFrom(callsPerHost: AtomicInteger) {
+      this.callsPerHost = callsPerHost
+    }
+
     val host: String
         get() = originalRequest.url.host
 
@@ -540,3 +517,31 @@ class RealCall(
     val callStackTrace: Any?
   ) : WeakReference<RealCall>(referent)
 }
+
+// 创建Address
+internal fun OkHttpClient.createAddress(url: HttpUrl): Address {
+  var sslSocketFactory: SSLSocketFactory? = null
+  var hostnameVerifier: HostnameVerifier? = null
+  var certificatePinner: CertificatePinner? = null
+  if (url.isHttps) {
+    // Https类型的
+    sslSocketFactory = this.sslSocketFactory
+    hostnameVerifier = this.hostnameVerifier
+    certificatePinner = this.certificatePinner
+  }
+
+  return Address(
+      uriHost = url.host, //主机名
+      uriPort = url.port, //端口号 Http->80 Https->443
+      dns = dns,
+      socketFactory = socketFactory,
+      sslSocketFactory = sslSocketFactory,
+      hostnameVerifier = hostnameVerifier,
+      certificatePinner = certificatePinner,
+      proxyAuthenticator = proxyAuthenticator,
+      proxy = proxy,
+      protocols = protocols,
+      connectionSpecs = connectionSpecs,
+      proxySelector = proxySelector
+  )
+}
@@ -42,10 +42,12 @@ import okhttp3.HttpUrl
 import okhttp3.OkHttpClient
 import okhttp3.Protocol
 import okhttp3.Request
+import okhttp3.RequestPriority
 import okhttp3.Response
 import okhttp3.Route
 import okhttp3.internal.EMPTY_RESPONSE
 import okhttp3.internal.assertThreadDoesntHoldLock
+import okhttp3.internal.assertThreadHoldsLock
 import okhttp3.internal.closeQuietly
 import okhttp3.internal.concurrent.TaskRunner
 import okhttp3.internal.http.ExchangeCodec
@@ -126,6 +128,9 @@ class RealConnection(
   /** Timestamp when `allocations.size()` reached zero. Also assigned upon initial connection. */
   internal var idleAtNs = Long.MAX_VALUE
 
+  /** True if this connection was opened ahead of demand by [RealConnectionPool.prewarm]. */
+  internal var prewarmed = false
+
   /**
    * Returns true if this is an HTTP/2 connection. Such connections can be used in multiple HTTP
    * requests simultaneously.
@@ -344,6 +349,8 @@ class RealConnection(
         .socket(socket, route.address.url.host, source, sink)
         .listener(this)
         .pingIntervalMillis(pingIntervalMillis)
+        .bodyBufferBudget(connectionPool.bodyBufferBudget)
+        .maxReceiveWindowSize(Http2Connection.OKHTTP_CLIENT_MAX_WINDOW_SIZE)
         .build()
     this.http2Connection = http2Connection
     this.allocationLimit = Http2Connection.DEFAULT_SETTINGS.getMaxConcurrentStreams()
@@ -402,7 +409,7 @@ class RealConnection(
 
       // Check that the certificate pinner is satisfied by the certificates presented.
       // 验证certificate pinner
-      certificatePinner.check(address.url.host) {
+      certificatePinner.check(address.url.host, unverifiedHandshake.peerCertificates) {
         handshake!!.peerCertificates.map { it as X509Certificate }
       }
 
@@ -517,6 +524,23 @@ class RealConnection(
     return authenticatedRequest ?: proxyConnectRequest
   }
 
+  /**
+   * Returns true if a call of [priority] may share this connection with the calls it carries. Bulk
+   * calls and other calls don't share HTTP/2 connections, so that a large download can't starve
+   * latency-sensitive calls of the connection's bandwidth.
+   */
+  internal fun acceptsPriority(priority: RequestPriority): Boolean {
+    connectionPool.assertThreadHoldsLock()
+
+    if (!isMultiplexed) return true
+    val bulk = priority == RequestPriority.BULK
+    for (reference in calls) {
+      val call = reference.get() ?: continue
+      if ((call.priority == RequestPriority.BULK) != bulk) return false
+    }
+    return true
+  }
+
   /**
    * Returns true if this connection can carry a stream allocation to `address`. If non-null
    * `route` is the resolved route for a connection.
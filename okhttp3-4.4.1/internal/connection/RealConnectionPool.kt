@@ -16,10 +16,17 @@
  */
 package okhttp3.internal.connection
 
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.Proxy
 import java.util.ArrayDeque
 import java.util.concurrent.TimeUnit
 import okhttp3.Address
 import okhttp3.ConnectionPool
+import okhttp3.EventListener
+import okhttp3.HttpUrl
+import okhttp3.OkHttpClient
+import okhttp3.Request
 import okhttp3.Route
 import okhttp3.internal.assertThreadHoldsLock
 import okhttp3.internal.closeQuietly
@@ -27,6 +34,7 @@ import okhttp3.internal.concurrent.Task
 import okhttp3.internal.concurrent.TaskQueue
 import okhttp3.internal.concurrent.TaskRunner
 import okhttp3.internal.connection.RealCall.CallReference
+import okhttp3.internal.http2.BodyBufferBudget
 import okhttp3.internal.okHttpName
 import okhttp3.internal.platform.Platform
 
@@ -35,7 +43,9 @@ class RealConnectionPool(
   /** The maximum number of idle connections for each address. */
   private val maxIdleConnections: Int,
   keepAliveDuration: Long,
-  timeUnit: TimeUnit
+  timeUnit: TimeUnit,
+  /** Accounts for response body data buffered by the HTTP/2 connections in this pool. */
+  val bodyBufferBudget: BodyBufferBudget = BodyBufferBudget()
 ) {
   private val keepAliveDurationNs: Long = timeUnit.toNanos(keepAliveDuration)
 
@@ -46,6 +56,32 @@ class RealConnectionPool(
 
   private val connections = ArrayDeque<RealConnection>()
 
+  /** Opens connections ahead of demand. Tasks run serially so they don't overshoot their goal. */
+  private val prewarmQueue: TaskQueue = taskRunner.newQueue()
+
+  /** Origins that [cleanup] keeps at a minimum number of idle connections. */
+  private val warmTargets = HashMap<Address, WarmTarget>()
+
+  /** The target [prewarmNow] is connecting for, or null if it isn't running. */
+  private var activePrewarm: WarmTarget? = null
+
+  /** Number of times a call acquired a connection that was opened by [prewarm]. */
+  private var prewarmedConnectionUseCount = 0
+
+  /**
+   * Index of [connections] by the address they were created for. A call to an address only needs
+   * to inspect these connections unless it's trying to coalesce onto another host's connection.
+   */
+  private val connectionsByAddress = HashMap<Address, MutableList<RealConnection>>()
+
+  /**
+   * Index of the multiplexed connections in [connections] by the IP address of their direct
+   * route. HTTP/2 connection coalescing requires a shared IP address, so these are the only
+   * candidates for a call whose host doesn't match.
+   */
+  private val multiplexedConnectionsBySocketAddress =
+      HashMap<InetSocketAddress, MutableList<RealConnection>>()
+
   init {
     // Put a floor on the keep alive duration, otherwise cleanup will spin loop.
     require(keepAliveDuration > 0L) { "keepAliveDuration <= 0: $keepAliveDuration" }
@@ -59,6 +95,135 @@ class RealConnectionPool(
     return connections.size
   }
 
+  @Synchronized fun prewarmedConnectionUseCount(): Int {
+    return prewarmedConnectionUseCount
+  }
+
+  /**
+   * Opens connections to [url]'s origin in the background until the pool holds [connectionCount]
+   * idle connections for it. The connections are configured by [client], which must use this pool.
+   *
+   * If [keepWarm] is true, [cleanup] won't evict the last [connectionCount] idle connections to
+   * the origin even after they exceed the keep alive duration, and it replaces connections that
+   * are closed. Otherwise any previous keep warm request for the origin is canceled.
+   *
+   * [evictAll] cancels all prewarming, including connections that are still being established.
+   */
+  fun prewarm(client: OkHttpClient, url: HttpUrl, connectionCount: Int, keepWarm: Boolean) {
+    require(connectionCount >= 1) { "connectionCount < 1: $connectionCount" }
+    require(client.connectionPool.delegate === this) { "client doesn't use this pool" }
+
+    // Route selection and connecting report to a call. Hide it from the application's listeners,
+    // which would otherwise see a call that never ends.
+    val call = RealCall(
+        client = client.newBuilder().eventListener(EventListener.NONE).build(),
+        originalRequest = Request.Builder().url(url).build(),
+        forWebSocket = false
+    )
+    val address = client.createAddress(url)
+    val target = WarmTarget(client, call, address, connectionCount)
+    synchronized(this) {
+      if (keepWarm) {
+        warmTargets[address] = target
+      } else {
+        warmTargets.remove(address)
+      }
+      target.prewarmScheduled = true
+      schedulePrewarm(target)
+    }
+  }
+
+  private fun schedulePrewarm(target: WarmTarget) {
+    this.assertThreadHoldsLock()
+
+    prewarmQueue.execute("$okHttpName ConnectionPool prewarm ${target.address.url.host}") {
+      prewarmNow(target)
+    }
+  }
+
+  /** Connects until [target] is met. This is blocking and runs on [prewarmQueue]. */
+  private fun prewarmNow(target: WarmTarget) {
+    val missingCount = synchronized(this) {
+      target.prewarmScheduled = false
+      if (target.canceled) return
+      activePrewarm = target
+      target.connectionCount - availableConnectionCount(target.address)
+    }
+    try {
+      if (missingCount > 0) connectMissing(target, missingCount)
+    } finally {
+      synchronized(this) {
+        activePrewarm = null
+      }
+    }
+  }
+
+  /** Opens [missingCount] connections for [target], stopping early if it is canceled. */
+  private fun connectMissing(target: WarmTarget, missingCount: Int) {
+    val client = target.client
+    val call = target.call
+    val routes = try {
+      val routeSelector =
+          RouteSelector(target.address, client.routeDatabase, call, EventListener.NONE)
+      if (!routeSelector.hasNext()) return
+      routeSelector.next().routes
+    } catch (_: IOException) {
+      return
+    }
+
+    // Spread the connections over the resolved IP addresses like route selection would.
+    for (i in 0 until missingCount) {
+      val route = routes[i % routes.size]
+      val connection = RealConnection(this, route)
+      synchronized(this) {
+        if (target.canceled) return
+        target.connecting = connection
+      }
+      try {
+        connection.connect(
+            client.connectTimeoutMillis,
+            client.readTimeoutMillis,
+            client.writeTimeoutMillis,
+            client.pingIntervalMillis,
+            client.retryOnConnectionFailure,
+            call,
+            EventListener.NONE
+        )
+      } catch (e: RouteException) {
+        // A connection that evictAll() canceled says nothing about its route.
+        if (synchronized(this) { target.canceled }) return
+        client.routeDatabase.failed(route)
+        continue
+      } finally {
+        synchronized(this) {
+          target.connecting = null
+        }
+      }
+      client.routeDatabase.connected(route)
+
+      val canceled = synchronized(this) {
+        if (!target.canceled) {
+          connection.prewarmed = true
+          connection.idleAtNs = System.nanoTime()
+          put(connection)
+        }
+        target.canceled
+      }
+      if (canceled) {
+        connection.socket().closeQuietly()
+        return
+      }
+    }
+  }
+
+  /** Returns the number of idle connections to [address] that can still carry new exchanges. */
+  private fun availableConnectionCount(address: Address): Int {
+    this.assertThreadHoldsLock()
+
+    val sameAddress = connectionsByAddress[address] ?: return 0
+    return sameAddress.count { it.calls.isEmpty() && !it.noNewExchanges }
+  }
+
   /**
    * Attempts to acquire a recycled connection to [address] for [call]. Returns true if a connection
    * was acquired.
@@ -74,13 +239,37 @@ class RealConnectionPool(
     requireMultiplexed: Boolean
   ): Boolean {
     this.assertThreadHoldsLock()
-    // 遍历连接池
-    for (connection in connections) {
-      // 复用
+    // 先查找同一个Address的连接
+    val sameAddress = connectionsByAddress[address]
+    if (sameAddress != null && acquireFirstEligible(sameAddress, address, call, routes,
+            requireMultiplexed)) {
+      return true
+    }
+
+    // HTTP/2 连接合并 只需要查找IP地址相同的连接
+    if (routes == null) return false
+    for (route in routes) {
+      if (route.proxy.type() != Proxy.Type.DIRECT) continue
+      val sameSocketAddress = multiplexedConnectionsBySocketAddress[route.socketAddress] ?: continue
+      if (acquireFirstEligible(sameSocketAddress, address, call, routes, requireMultiplexed)) {
+        return true
+      }
+    }
+    return false
+  }
+
+  private fun acquireFirstEligible(
+    candidates: List<RealConnection>,
+    address: Address,
+    call: RealCall,
+    routes: List<Route>?,
+    requireMultiplexed: Boolean
+  ): Boolean {
+    for (connection in candidates) {
       if (requireMultiplexed && !connection.isMultiplexed) continue
-      // 判断连接是否合适
       if (!connection.isEligible(address, routes)) continue
-      // 获取到连接
+      if (!connection.acceptsPriority(call.priority)) continue
+      if (connection.prewarmed) prewarmedConnectionUseCount++
       call.acquireConnectionNoEvents(connection)
       return true
     }
@@ -91,6 +280,12 @@ class RealConnectionPool(
     this.assertThreadHoldsLock()
 
     connections.add(connection)
+    connectionsByAddress.getOrPut(connection.route().address) { mutableListOf() }.add(connection)
+    val socketAddress = coalescingSocketAddress(connection)
+    if (socketAddress != null) {
+      multiplexedConnectionsBySocketAddress.getOrPut(socketAddress) { mutableListOf() }
+          .add(connection)
+    }
     cleanupQueue.schedule(cleanupTask)
   }
 
@@ -102,8 +297,8 @@ class RealConnectionPool(
     this.assertThreadHoldsLock()
 
     return if (connection.noNewExchanges || maxIdleConnections == 0) {
-      connections.remove(connection)
-      if (connections.isEmpty()) cleanupQueue.cancelAll()
+      remove(connection)
+      if (connections.isEmpty() && warmTargets.isEmpty()) cleanupQueue.cancelAll()
       true
     } else {
       cleanupQueue.schedule(cleanupTask)
@@ -113,7 +308,16 @@ class RealConnectionPool(
 
   fun evictAll() {
     val evictedConnections = mutableListOf<RealConnection>()
+    val connectingToCancel: RealConnection?
     synchronized(this) {
+      // Stop opening connections ahead of demand, and stop keeping origins warm.
+      for (target in warmTargets.values) target.canceled = true
+      warmTargets.clear()
+      val activePrewarm = this.activePrewarm
+      activePrewarm?.canceled = true
+      connectingToCancel = activePrewarm?.connecting
+      prewarmQueue.cancelAll()
+
       val i = connections.iterator()
       while (i.hasNext()) {
         val connection = i.next()
@@ -121,11 +325,13 @@ class RealConnectionPool(
           connection.noNewExchanges = true
           evictedConnections.add(connection)
           i.remove()
+          removeFromIndexes(connection)
         }
       }
-      if (connections.isEmpty()) cleanupQueue.cancelAll()
+      if (connections.isEmpty() && warmTargets.isEmpty()) cleanupQueue.cancelAll()
     }
 
+    connectingToCancel?.cancel()
     for (connection in evictedConnections) {
       connection.socket().closeQuietly()
     }
@@ -135,6 +341,9 @@ class RealConnectionPool(
    * Performs maintenance on this pool, evicting the connection that has been idle the longest if
    * either it has exceeded the keep alive limit or the idle connections limit.
    *
+   * Idle connections that keep a [warm target][prewarm] at its minimum are exempt, and targets
+   * that have dropped below their minimum are scheduled to be refilled.
+   *
    * Returns the duration in nanoseconds to sleep until the next scheduled call to this method.
    * Returns -1 if no further cleanups are required.
    */
@@ -146,6 +355,7 @@ class RealConnectionPool(
 
     // Find either a connection to evict, or the time that the next eviction is due.
     synchronized(this) {
+      val warmCounts = if (warmTargets.isEmpty()) null else HashMap<Address, Int>()
       for (connection in connections) {
         // If the connection is in use, keep searching.
         if (pruneAndGetAllocationCount(connection, now) > 0) {
@@ -153,6 +363,17 @@ class RealConnectionPool(
           continue
         }
 
+        // 保持预热连接的最小空闲数量
+        if (warmCounts != null && !connection.noNewExchanges) {
+          val address = connection.route().address
+          val target = warmTargets[address]
+          val warmCount = warmCounts[address] ?: 0
+          if (target != null && warmCount < target.connectionCount) {
+            warmCounts[address] = warmCount + 1
+            continue
+          }
+        }
+
         idleConnectionCount++
 
         // If the connection is ready to be evicted, we're done.
@@ -168,16 +389,18 @@ class RealConnectionPool(
             || idleConnectionCount > this.maxIdleConnections -> {
           // We've found a connection to evict. Remove it from the list, then close it below
           // (outside of the synchronized block).
-          connections.remove(longestIdleConnection)
-          if (connections.isEmpty()) cleanupQueue.cancelAll()
+          remove(longestIdleConnection!!)
+          if (connections.isEmpty() && warmTargets.isEmpty()) cleanupQueue.cancelAll()
         }
         idleConnectionCount > 0 -> {
           // A connection will be ready to evict soon.
+          scheduleWarmTargetRefills(warmCounts)
           return keepAliveDurationNs - longestIdleDurationNs
         }
-        inUseConnectionCount > 0 -> {
-          // All connections are in use. It'll be at least the keep alive duration 'til we run
-          // again.
+        inUseConnectionCount > 0 || warmTargets.isNotEmpty() -> {
+          // All connections are in use or kept warm. It'll be at least the keep alive duration
+          // 'til we run again.
+          scheduleWarmTargetRefills(warmCounts)
           return keepAliveDurationNs
         }
         else -> {
@@ -193,6 +416,42 @@ class RealConnectionPool(
     return 0L
   }
 
+  /** Refills warm targets that have fewer idle connections than requested. */
+  private fun scheduleWarmTargetRefills(warmCounts: Map<Address, Int>?) {
+    if (warmCounts == null) return
+    for (target in warmTargets.values) {
+      if (target.prewarmScheduled) continue
+      if ((warmCounts[target.address] ?: 0) >= target.connectionCount) continue
+      target.prewarmScheduled = true
+      schedulePrewarm(target)
+    }
+  }
+
+  private fun remove(connection: RealConnection) {
+    if (connections.remove(connection)) removeFromIndexes(connection)
+  }
+
+  private fun removeFromIndexes(connection: RealConnection) {
+    val address = connection.route().address
+    val sameAddress = connectionsByAddress[address]
+    if (sameAddress != null) {
+      sameAddress.remove(connection)
+      if (sameAddress.isEmpty()) connectionsByAddress.remove(address)
+    }
+
+    val socketAddress = coalescingSocketAddress(connection) ?: return
+    val sameSocketAddress = multiplexedConnectionsBySocketAddress[socketAddress] ?: return
+    sameSocketAddress.remove(connection)
+    if (sameSocketAddress.isEmpty()) multiplexedConnectionsBySocketAddress.remove(socketAddress)
+  }
+
+  /** Returns the key [connection] is indexed by for coalescing, or null if it can't coalesce. */
+  private fun coalescingSocketAddress(connection: RealConnection): InetSocketAddress? {
+    val route = connection.route()
+    if (!connection.isMultiplexed || route.proxy.type() != Proxy.Type.DIRECT) return null
+    return route.socketAddress
+  }
+
   /**
    * Prunes any leaked calls and then returns the number of remaining live calls on [connection].
    * Calls are leaked if the connection is tracking them but the application code has abandoned
@@ -228,6 +487,23 @@ class RealConnectionPool(
     return references.size
   }
 
+  private class WarmTarget(
+    val client: OkHttpClient,
+    /** A call that is never executed. Route selection and connecting need one to report to. */
+    val call: RealCall,
+    val address: Address,
+    val connectionCount: Int
+  ) {
+    /** True if a [prewarmNow] task for this target is waiting to run. Guarded by the pool. */
+    var prewarmScheduled = false
+
+    /** True once [evictAll] canceled this target. Guarded by the pool. */
+    var canceled = false
+
+    /** The connection being established for this target, if any. Guarded by the pool. */
+    var connecting: RealConnection? = null
+  }
+
   companion object {
     fun get(connectionPool: ConnectionPool): RealConnectionPool = connectionPool.delegate
   }
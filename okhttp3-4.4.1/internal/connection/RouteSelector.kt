@@ -16,6 +16,8 @@
 package okhttp3.internal.connection
 
 import java.io.IOException
+import java.net.Inet6Address
+import java.net.InetAddress
 import java.net.InetSocketAddress
 import java.net.Proxy
 import java.net.SocketException
@@ -37,7 +39,9 @@ class RouteSelector(
   private val address: Address,
   private val routeDatabase: RouteDatabase,
   private val call: Call,
-  private val eventListener: EventListener
+  private val eventListener: EventListener,
+  /** True to interleave IPv6 and IPv4 addresses so that racing connections try both families. */
+  private val fastFallback: Boolean = false
 ) {
   /* State for negotiating the next proxy to use. */
   private var proxies = emptyList<Proxy>()
@@ -167,12 +171,30 @@ class RouteSelector(
         throw UnknownHostException("${address.dns} returned no addresses for $socketHost")
       }
 
-      for (inetAddress in addresses) {
+      val orderedAddresses = if (fastFallback) interleaveFamilies(addresses) else addresses
+      for (inetAddress in orderedAddresses) {
         mutableInetSocketAddresses += InetSocketAddress(inetAddress, socketPort)
       }
     }
   }
 
+  /**
+   * Returns [addresses] with IPv6 and IPv4 addresses alternating, starting with the family of the
+   * first address. The order within each family is preserved.
+   */
+  private fun interleaveFamilies(addresses: List<InetAddress>): List<InetAddress> {
+    val (ipv6, ipv4) = addresses.partition { it is Inet6Address }
+    if (ipv6.isEmpty() || ipv4.isEmpty()) return addresses
+
+    val (first, second) = if (addresses[0] is Inet6Address) ipv6 to ipv4 else ipv4 to ipv6
+    val result = ArrayList<InetAddress>(addresses.size)
+    for (i in 0 until maxOf(first.size, second.size)) {
+      if (i < first.size) result += first[i]
+      if (i < second.size) result += second[i]
+    }
+    return result
+  }
+
   /** A set of selected Routes. */
   class Selection(val routes: List<Route>) {
     private var nextRouteIndex = 0
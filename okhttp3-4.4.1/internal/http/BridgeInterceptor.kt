@@ -17,21 +17,28 @@
 package okhttp3.internal.http
 
 import java.io.IOException
+import okhttp3.ContentDecoder
 import okhttp3.Cookie
 import okhttp3.CookieJar
 import okhttp3.Interceptor
 import okhttp3.Response
 import okhttp3.internal.toHostHeader
 import okhttp3.internal.userAgent
-import okio.GzipSource
+import okio.Source
 import okio.buffer
 
 /**
  * Bridges from application code to network code. First it builds a network request from a user
  * request. Then it proceeds to call the network. Finally it builds a user response from the network
  * response.
+ *
+ * Responses encoded with one of [contentDecoders] are decoded as they're read.
  */
-class BridgeInterceptor(private val cookieJar: CookieJar) : Interceptor {
+class BridgeInterceptor(
+  private val cookieJar: CookieJar,
+  private val contentDecoders: List<ContentDecoder> = listOf(ContentDecoder.GZIP)
+) : Interceptor {
+  private val acceptEncoding = contentDecoders.joinToString(", ") { it.encoding }
 
   @Throws(IOException::class)
   override fun intercept(chain: Interceptor.Chain): Response {
@@ -67,13 +74,15 @@ class BridgeInterceptor(private val cookieJar: CookieJar) : Interceptor {
       requestBuilder.header("Connection", "Keep-Alive")
     }
 
-    // If we add an "Accept-Encoding: gzip" header field we're responsible for also decompressing
-    // the transfer stream.
-    var transparentGzip = false
-    if (userRequest.header("Accept-Encoding") == null && userRequest.header("Range") == null) {
-      transparentGzip = true
-      // 使用gzip传输
-      requestBuilder.header("Accept-Encoding", "gzip")
+    // If we add an "Accept-Encoding" header field we're responsible for also decompressing the
+    // transfer stream.
+    var transparentDecoding = false
+    if (contentDecoders.isNotEmpty() &&
+        userRequest.header("Accept-Encoding") == null &&
+        userRequest.header("Range") == null) {
+      transparentDecoding = true
+      // 使用gzip等压缩传输
+      requestBuilder.header("Accept-Encoding", acceptEncoding)
     }
     // 加载cookie
     val cookies = cookieJar.loadForRequest(userRequest.url)
@@ -98,26 +107,54 @@ class BridgeInterceptor(private val cookieJar: CookieJar) : Interceptor {
     val responseBuilder = networkResponse.newBuilder()
         .request(userRequest)
 
-    if (transparentGzip &&
-        "gzip".equals(networkResponse.header("Content-Encoding"), ignoreCase = true) &&
-        networkResponse.promisesBody()) {
-      // gzip解压缩
+    val decoders = if (transparentDecoding) {
+      decodersFor(networkResponse.headers("Content-Encoding"))
+    } else {
+      null
+    }
+    if (decoders != null && networkResponse.promisesBody()) {
+      // gzip等解压缩
       val responseBody = networkResponse.body
       if (responseBody != null) {
-        val gzipSource = GzipSource(responseBody.source())
+        // Codings are listed in the order they were applied, so undo them from last to first.
+        var source: Source = responseBody.source()
+        for (decoder in decoders.asReversed()) {
+          source = decoder.decode(source.buffer())
+        }
         val strippedHeaders = networkResponse.headers.newBuilder()
             .removeAll("Content-Encoding")
             .removeAll("Content-Length")
             .build()
         responseBuilder.headers(strippedHeaders)
         val contentType = networkResponse.header("Content-Type")
-        responseBuilder.body(RealResponseBody(contentType, -1L, gzipSource.buffer()))
+        responseBuilder.body(RealResponseBody(contentType, -1L, source.buffer()))
       }
     }
 
     return responseBuilder.build()
   }
 
+  /**
+   * Returns the decoders for the codings of [contentEncodings], like `gzip` or `deflate, br`, in
+   * the order they were applied. Codings may be split over several header fields. Returns null if
+   * there is nothing to decode or a coding is unknown, in which case the response body is passed
+   * through unchanged.
+   */
+  private fun decodersFor(contentEncodings: List<String>): List<ContentDecoder>? {
+    var result: MutableList<ContentDecoder>? = null
+    for (contentEncoding in contentEncodings) {
+      for (token in contentEncoding.split(',')) {
+        val coding = token.trim()
+        if (coding.isEmpty() || coding.equals("identity", ignoreCase = true)) continue
+        val decoder = contentDecoders.firstOrNull { it.encoding.equals(coding, ignoreCase = true) }
+            ?: return null
+        if (result == null) result = mutableListOf()
+        result.add(decoder)
+      }
+    }
+    return result
+  }
+
   /** Returns a 'Cookie' HTTP request header with all cookies, like `a=b; c=d`. */
   private fun cookieHeader(cookies: List<Cookie>): String = buildString {
     cookies.forEachIndexed { index, cookie ->
@@ -32,18 +32,28 @@ import okhttp3.internal.connection.RealCall
  *
  * If the chain is for an application interceptor then [exchange] must be null. Otherwise it is for
  * a network interceptor and [exchange] must be non-null.
+ *
+ * Rather than allocating a chain for each interceptor, one instance is a cursor that walks down
+ * the interceptors: [proceed] advances it to the next interceptor and restores it when that
+ * interceptor returns. Interceptors only use their chain while they are running, so each one sees
+ * the position and request it was called with. Changing the exchange or a timeout still makes a
+ * [copy], which continues as a cursor of its own.
  */
 class RealInterceptorChain(
   internal val call: RealCall,
   private val interceptors: List<Interceptor>,
-  private val index: Int,
+  private var index: Int,
   internal val exchange: Exchange?,
-  internal val request: Request,
+  request: Request,
   internal val connectTimeoutMillis: Int,
   internal val readTimeoutMillis: Int,
   internal val writeTimeoutMillis: Int
 ) : Interceptor.Chain {
 
+  internal var request: Request = request
+    private set
+
+  /** How many times [proceed] was called at the current position. */
   private var calls: Int = 0
 
   internal fun copy(
@@ -94,16 +104,30 @@ class RealInterceptorChain(
     }
 
     // Call the next interceptor in the chain.
-    // 递归调用下一个interceptor
-    val next = copy(index = index + 1, request = request)
+    // 递归调用下一个interceptor 复用当前chain 返回后恢复位置
     val interceptor = interceptors[index]
-
-    @Suppress("USELESS_ELVIS")
-    val response = interceptor.intercept(next) ?: throw NullPointerException(
-        "interceptor $interceptor returned null")
+    val callerIndex = index
+    val callerRequest = this.request
+    val callerCalls = calls
+    index = callerIndex + 1
+    this.request = request
+    calls = 0
+
+    val response: Response
+    val nextCalls: Int
+    try {
+      @Suppress("USELESS_ELVIS")
+      response = interceptor.intercept(this) ?: throw NullPointerException(
+          "interceptor $interceptor returned null")
+    } finally {
+      nextCalls = calls
+      index = callerIndex
+      this.request = callerRequest
+      calls = callerCalls
+    }
 
     if (exchange != null) {
-      check(index + 1 >= interceptors.size || next.calls == 1) {
+      check(index + 1 >= interceptors.size || nextCalls == 1) {
         "network interceptor $interceptor must call proceed() exactly once"
       }
     }
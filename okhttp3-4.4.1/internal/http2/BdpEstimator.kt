@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2
+
+/**
+ * Estimates a connection's bandwidth-delay product so that its receive window can grow until the
+ * window no longer limits throughput.
+ *
+ * When data arrives and no probe is outstanding the connection sends a `PING`. Every byte received
+ * until the matching pong is part of the sample: that's how much the peer could send in one round
+ * trip with the current window. If the sample fills most of the window and throughput is the best
+ * seen so far, the window is the bottleneck and it is doubled, up to [maxWindowSize].
+ *
+ * This class is not thread safe. The connection guards it with its own lock.
+ */
+internal class BdpEstimator(
+  /** The receive window the connection starts with. */
+  windowSize: Int,
+  /** The largest receive window this estimator will ask for. */
+  private val maxWindowSize: Int
+) {
+  /**
+   * The receive window the connection advertises to its peer. The connection lowers this when it
+   * can't grant all of the growth [probeAcknowledged] asked for.
+   */
+  var windowSize: Int = windowSize
+
+  /** True if a probe was requested and its pong hasn't been received yet. */
+  private var probing = false
+  private var probeSentAtNs = 0L
+  private var sampleByteCount = 0L
+  private var sampleCount = 0
+
+  /** The smoothed round trip time, in nanoseconds. */
+  private var rttNs = 0.0
+
+  /** The best throughput sampled so far, in bytes per nanosecond. */
+  private var maxBandwidth = 0.0
+
+  /** Records [byteCount] bytes of received data. Returns true if the caller should send a probe. */
+  fun dataReceived(byteCount: Int): Boolean {
+    if (windowSize >= maxWindowSize) return false // Nothing left to grow.
+    if (probing) {
+      sampleByteCount += byteCount
+      return false
+    }
+    probing = true
+    probeSentAtNs = -1L
+    sampleByteCount = byteCount.toLong()
+    sampleCount++
+    return true
+  }
+
+  /** Records that the probe's `PING` frame was written at [nowNs]. */
+  fun probeSent(nowNs: Long) {
+    probeSentAtNs = nowNs
+  }
+
+  /**
+   * Completes the outstanding probe. Returns the window size the connection should advertise, or
+   * -1 if the current window is still large enough.
+   */
+  fun probeAcknowledged(nowNs: Long): Int {
+    if (!probing) return -1 // Ignore an unexpected pong.
+    probing = false
+    if (probeSentAtNs == -1L) return -1
+
+    val rttSampleNs = (nowNs - probeSentAtNs).coerceAtLeast(1L).toDouble()
+    rttNs += when {
+      sampleCount < 10 -> (rttSampleNs - rttNs) / sampleCount // Average the first samples.
+      else -> (rttSampleNs - rttNs) * RTT_SMOOTHING
+    }
+
+    // Pad the round trip time a little so that scheduling delays don't inflate the throughput.
+    val bandwidth = sampleByteCount / (rttNs * 1.5)
+    if (bandwidth > maxBandwidth) maxBandwidth = bandwidth
+
+    if (sampleByteCount < windowSize * WINDOW_FILL_RATIO || bandwidth < maxBandwidth) return -1
+
+    windowSize = minOf(sampleByteCount * 2, maxWindowSize.toLong()).toInt()
+        .coerceAtLeast(windowSize)
+    return windowSize
+  }
+
+  companion object {
+    /** Weight of each new round trip sample once the average has settled. */
+    private const val RTT_SMOOTHING = 0.9
+
+    /** Grow the window when a round trip's worth of data fills at least this much of it. */
+    private const val WINDOW_FILL_RATIO = 0.66
+  }
+}
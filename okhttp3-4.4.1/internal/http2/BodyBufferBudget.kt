@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2
+
+/**
+ * Accounts for response body bytes that HTTP/2 streams have received but the application hasn't
+ * read yet, across every connection that shares this budget.
+ *
+ * Streams don't drop data when the budget is exceeded. Instead they stop granting the peer more
+ * flow-control window, so buffered data is bounded by the budget plus the windows that were
+ * already granted. Window updates held back this way are sent when reads bring the buffered byte
+ * count back under [maxByteCount].
+ */
+class BodyBufferBudget(
+  /** The buffered byte count above which streams stop acknowledging data. */
+  val maxByteCount: Long = Long.MAX_VALUE
+) {
+  private var bufferedByteCount = 0L
+  private var peakBufferedByteCount = 0L
+
+  /** Acknowledgements held back while over budget, in the order they were deferred. */
+  private val deferredAcknowledgements = mutableListOf<Runnable>()
+
+  /** Receive window granted beyond the connections' initial windows, across all connections. */
+  private var grownWindowByteCount = 0L
+
+  /** True if this budget has a limit. Receive windows only grow on connections that have one. */
+  val isBounded: Boolean
+    get() = maxByteCount != Long.MAX_VALUE
+
+  init {
+    require(maxByteCount > 0L) { "maxByteCount <= 0: $maxByteCount" }
+  }
+
+  @Synchronized fun bufferedByteCount(): Long = bufferedByteCount
+
+  @Synchronized fun peakBufferedByteCount(): Long = peakBufferedByteCount
+
+  /** Records [byteCount] bytes moving into a stream's read buffer. */
+  @Synchronized fun received(byteCount: Long) {
+    bufferedByteCount += byteCount
+    if (bufferedByteCount > peakBufferedByteCount) peakBufferedByteCount = bufferedByteCount
+  }
+
+  /**
+   * Records [byteCount] bytes leaving a stream's read buffer because they were read or discarded,
+   * and runs deferred acknowledgements if that brought the budget back under its limit.
+   *
+   * Must not be called while holding a stream's lock, the acknowledgements take it.
+   */
+  fun released(byteCount: Long) {
+    val toRun: List<Runnable>
+    synchronized(this) {
+      bufferedByteCount -= byteCount
+      if (bufferedByteCount >= maxByteCount || deferredAcknowledgements.isEmpty()) return
+      toRun = deferredAcknowledgements.toList()
+      deferredAcknowledgements.clear()
+    }
+    for (acknowledgement in toRun) {
+      acknowledgement.run()
+    }
+  }
+
+  /**
+   * Returns true if the caller may acknowledge received data now. Otherwise [acknowledgement] is
+   * run once the budget has room again and this returns false.
+   */
+  /**
+   * Reserves up to [byteCount] bytes for a connection to grow its receive window by. Returns the
+   * number of bytes reserved, which is less than requested once the windows of every connection
+   * sharing this budget have grown by [maxByteCount] in total.
+   */
+  @Synchronized fun reserveWindowGrowth(byteCount: Long): Long {
+    val result = minOf(byteCount, maxByteCount - grownWindowByteCount).coerceAtLeast(0L)
+    grownWindowByteCount += result
+    return result
+  }
+
+  /** Returns window growth reserved by a connection that has closed. */
+  @Synchronized fun releaseWindowGrowth(byteCount: Long) {
+    grownWindowByteCount -= byteCount
+  }
+
+  @Synchronized fun acknowledgeOrDefer(acknowledgement: Runnable): Boolean {
+    if (bufferedByteCount < maxByteCount) return true
+    deferredAcknowledgements += acknowledgement
+    return false
+  }
+}
@@ -55,6 +55,12 @@ object Hpack {
    */
   private const val SETTINGS_HEADER_TABLE_SIZE_LIMIT = 16_384
 
+  /** Slots in a reader's cache of decoded strings. Must be a power of 2. */
+  private const val INTERNED_BYTE_STRING_SLOTS = 64
+
+  /** Longer strings, like cookies and paths, are rarely repeated and aren't worth comparing. */
+  private const val INTERNED_BYTE_STRING_MAX_SIZE = 64L
+
   val STATIC_HEADER_TABLE = arrayOf(
       Header(TARGET_AUTHORITY, ""),
       Header(TARGET_METHOD, "GET"),
@@ -130,6 +136,15 @@ object Hpack {
     private val headerList = mutableListOf<Header>()
     private val source: BufferedSource = source.buffer()
 
+    /** Reused for every Huffman decoded string. */
+    private val decodeBuffer = Buffer()
+
+    /**
+     * Recently decoded names and values. Header blocks on a connection repeat the same strings, so
+     * returning an equal instance from here saves allocating a new [ByteString] for each of them.
+     */
+    private val internedByteStrings = arrayOfNulls<ByteString>(INTERNED_BYTE_STRING_SLOTS)
+
     // Visible for testing.
     @JvmField var dynamicTable = arrayOfNulls<Header>(8)
     // Array is populated back to front, so new entries always have lowest index.
@@ -370,13 +385,36 @@ object Hpack {
       val length = readInt(firstByte, PREFIX_7_BITS).toLong()
 
       return if (huffmanDecode) {
-        val decodeBuffer = Buffer()
+        decodeBuffer.clear()
         Huffman.decode(source, length, decodeBuffer)
-        decodeBuffer.readByteString()
+        readInterned(decodeBuffer, decodeBuffer.size)
       } else {
-        source.readByteString(length)
+        source.require(length)
+        readInterned(source.buffer, length)
       }
     }
+
+    /**
+     * Consumes [byteCount] bytes of [buffer] and returns them as a byte string, reusing a
+     * previously read byte string when it has the same contents.
+     */
+    private fun readInterned(buffer: Buffer, byteCount: Long): ByteString {
+      if (byteCount == 0L) return ByteString.EMPTY
+      if (byteCount > INTERNED_BYTE_STRING_MAX_SIZE) return buffer.readByteString(byteCount)
+
+      val slot = (byteCount.toInt() * 31 + buffer[0] * 17 + buffer[byteCount - 1]) and
+          (INTERNED_BYTE_STRING_SLOTS - 1)
+      val interned = internedByteStrings[slot]
+      if (interned != null && interned.size.toLong() == byteCount &&
+          buffer.rangeEquals(0L, interned)) {
+        buffer.skip(byteCount)
+        return interned
+      }
+
+      val result = buffer.readByteString(byteCount)
+      internedByteStrings[slot] = result
+      return result
+    }
   }
 
   private fun nameToFirstIndex(): Map<ByteString, Int> {
@@ -409,11 +447,43 @@ object Hpack {
     @JvmField var headerCount = 0
     @JvmField var dynamicTableByteCount = 0
 
+    /**
+     * Number of entries ever inserted into the dynamic table. Each entry is identified by its
+     * insertion number, which is stable across evictions, and its HPACK index can be computed from
+     * the insertion number and this count.
+     */
+    private var insertCount = 0
+
+    /** Insertion number of the newest dynamic table entry with each name and value. */
+    private val dynamicNameValueIndex = HashMap<Header, Int>()
+
+    /** Insertion number of the newest dynamic table entry with each name. */
+    private val dynamicNameIndex = HashMap<ByteString, Int>()
+
+    /** Reused for every Huffman encoded string. */
+    private val huffmanBuffer = Buffer()
+
     private fun clearDynamicTable() {
       dynamicTable.fill(null)
       nextHeaderIndex = dynamicTable.size - 1
       headerCount = 0
       dynamicTableByteCount = 0
+      dynamicNameValueIndex.clear()
+      dynamicNameIndex.clear()
+    }
+
+    /** Returns the HPACK index of the dynamic table entry that was inserted [insertion]th. */
+    private fun dynamicHeaderIndex(insertion: Int): Int {
+      return insertCount - insertion + STATIC_HEADER_TABLE.size
+    }
+
+    /**
+     * Forgets [entry], the oldest entry in the dynamic table. Newer entries with the same name or
+     * value have replaced it in the indexes already, so it's only removed if it's still current.
+     */
+    private fun removeFromIndexes(entry: Header, insertion: Int) {
+      if (dynamicNameValueIndex[entry] == insertion) dynamicNameValueIndex.remove(entry)
+      if (dynamicNameIndex[entry.name] == insertion) dynamicNameIndex.remove(entry.name)
     }
 
     /** Returns the count of entries evicted. */
@@ -424,6 +494,7 @@ object Hpack {
         // determine how many headers need to be evicted.
         var j = dynamicTable.size - 1
         while (j >= nextHeaderIndex && bytesToRecover > 0) {
+          removeFromIndexes(dynamicTable[j]!!, insertCount - headerCount)
           bytesToRecover -= dynamicTable[j]!!.hpackSize
           dynamicTableByteCount -= dynamicTable[j]!!.hpackSize
           headerCount--
@@ -461,6 +532,9 @@ object Hpack {
       dynamicTable[index] = entry
       headerCount++
       dynamicTableByteCount += delta
+      dynamicNameValueIndex[entry] = insertCount
+      dynamicNameIndex[entry.name] = insertCount
+      insertCount++
     }
 
     /** This does not use "never indexed" semantics for sensitive headers. */
@@ -500,16 +574,15 @@ object Hpack {
           }
         }
 
-        if (headerIndex == -1) {
-          for (j in nextHeaderIndex + 1 until dynamicTable.size) {
-            if (dynamicTable[j]!!.name == name) {
-              if (dynamicTable[j]!!.value == value) {
-                headerIndex = j - nextHeaderIndex + STATIC_HEADER_TABLE.size
-                break
-              } else if (headerNameIndex == -1) {
-                headerNameIndex = j - nextHeaderIndex + STATIC_HEADER_TABLE.size
-              }
-            }
+        if (headerIndex == -1 && headerCount > 0) {
+          // Look up the newest dynamic entries with this name and value, or failing that this name.
+          val key = if (name === header.name) header else Header(name, value)
+          val nameValueInsertion = dynamicNameValueIndex[key]
+          if (nameValueInsertion != null) {
+            headerIndex = dynamicHeaderIndex(nameValueInsertion)
+          } else if (headerNameIndex == -1) {
+            val nameInsertion = dynamicNameIndex[name]
+            if (nameInsertion != null) headerNameIndex = dynamicHeaderIndex(nameInsertion)
           }
         }
 
@@ -566,11 +639,10 @@ object Hpack {
     @Throws(IOException::class)
     fun writeByteString(data: ByteString) {
       if (useCompression && Huffman.encodedLength(data) < data.size) {
-        val huffmanBuffer = Buffer()
+        huffmanBuffer.clear()
         Huffman.encode(data, huffmanBuffer)
-        val huffmanBytes = huffmanBuffer.readByteString()
-        writeInt(huffmanBytes.size, PREFIX_7_BITS, 0x80)
-        out.write(huffmanBytes)
+        writeInt(huffmanBuffer.size.toInt(), PREFIX_7_BITS, 0x80)
+        out.writeAll(huffmanBuffer)
       } else {
         writeInt(data.size, PREFIX_7_BITS, 0)
         out.write(data)
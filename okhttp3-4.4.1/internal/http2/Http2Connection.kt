@@ -20,6 +20,7 @@ import java.io.IOException
 import java.io.InterruptedIOException
 import java.net.Socket
 import java.util.concurrent.TimeUnit
+import okhttp3.RequestPriority
 import okhttp3.internal.EMPTY_BYTE_ARRAY
 import okhttp3.internal.EMPTY_HEADERS
 import okhttp3.internal.assertThreadDoesntHoldLock
@@ -94,6 +95,9 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
   /** User code to run in response to push promise events. */
   private val pushObserver: PushObserver = builder.pushObserver
 
+  /** Accounts for received data that streams are holding for the application. */
+  internal val bodyBufferBudget: BodyBufferBudget? = builder.bodyBufferBudget
+
   // Total number of pings send and received of the corresponding types. All guarded by this.
   private var intervalPingsSent = 0L
   private var intervalPongsReceived = 0L
@@ -115,6 +119,22 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
     }
   }
 
+  /**
+   * Grows the receive window as the measured bandwidth-delay product requires, or null if the
+   * window is fixed. Guarded by this.
+   */
+  private val bdpEstimator: BdpEstimator? =
+      // Growth is reserved from the budget, so an unbounded budget can't grow windows.
+      if (builder.maxReceiveWindowSize > okHttpSettings.initialWindowSize &&
+          builder.bodyBufferBudget?.isBounded == true) {
+        BdpEstimator(okHttpSettings.initialWindowSize, builder.maxReceiveWindowSize)
+      } else {
+        null
+      }
+
+  /** Window growth this connection reserved from [bodyBufferBudget]. Guarded by this. */
+  private var grownWindowByteCount = 0L
+
   /**
    * Settings we receive from the peer. Changes to the field are guarded by this. The instance is
    * never mutated once it has been assigned.
@@ -137,6 +157,9 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
   var writeBytesMaximum: Long = peerSettings.initialWindowSize.toLong()
     private set
 
+  /** Writers in [writeData], indexed by priority. Guarded by this. */
+  private val dataWriters = IntArray(RequestPriority.values().size)
+
   internal val socket: Socket = builder.socket
   val writer = Http2Writer(builder.sink, client)
 
@@ -216,20 +239,23 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
    *
    * @param out true to create an output stream that we can use to send data to the remote peer.
    *     Corresponds to `FLAG_FIN`.
+   * @param priority orders the stream's data frames relative to other streams on this connection.
    */
-  @Throws(IOException::class)
+  @Throws(IOException::class) @JvmOverloads
   fun newStream(
     requestHeaders: List<Header>,
-    out: Boolean
+    out: Boolean,
+    priority: RequestPriority = RequestPriority.NORMAL
   ): Http2Stream {
-    return newStream(0, requestHeaders, out)
+    return newStream(0, requestHeaders, out, priority)
   }
 
   @Throws(IOException::class)
   private fun newStream(
     associatedStreamId: Int,
     requestHeaders: List<Header>,
-    out: Boolean
+    out: Boolean,
+    priority: RequestPriority = RequestPriority.NORMAL
   ): Http2Stream {
     val outFinished = !out
     val inFinished = false
@@ -248,6 +274,7 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
         streamId = nextStreamId
         nextStreamId += 2
         stream = Http2Stream(streamId, this, outFinished, inFinished, null)
+        stream.priority = priority
         flushHeaders = !out ||
             writeBytesTotal >= writeBytesMaximum ||
             stream.writeBytesTotal >= stream.writeBytesMaximum
@@ -291,6 +318,10 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
    *
    * Zero [byteCount] writes are not subject to flow control and will not block. The only use case
    * for zero [byteCount] is closing a flushed output stream.
+   *
+   * Streams take turns one frame at a time, but a stream doesn't start another frame while a stream
+   * of higher [priority][Http2Stream.priority] is writing. This keeps a large upload from delaying
+   * the request bodies of latency-sensitive calls by more than a frame.
    */
   @Throws(IOException::class)
   fun writeData(
@@ -305,32 +336,62 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
       return
     }
 
-    var byteCount = byteCount
-    while (byteCount > 0L) {
-      var toWrite: Int
-      synchronized(this@Http2Connection) {
-        try {
-          while (writeBytesTotal >= writeBytesMaximum) {
-            // Before blocking, confirm that the stream we're writing is still open. It's possible
-            // that the stream has since been closed (such as if this write timed out.)
-            if (!streams.containsKey(streamId)) {
-              throw IOException("stream closed")
+    val priority = synchronized(this@Http2Connection) {
+      val priority = streams[streamId]?.priority ?: RequestPriority.NORMAL
+      dataWriters[priority.ordinal]++
+      priority
+    }
+    try {
+      var byteCount = byteCount
+      while (byteCount > 0L) {
+        var toWrite: Int
+        synchronized(this@Http2Connection) {
+          try {
+            while (writeBytesTotal >= writeBytesMaximum || higherPriorityWriting(priority)) {
+              // Before blocking, confirm that the stream we're writing is still open. It's
+              // possible that the stream has since been closed (such as if this write timed out.)
+              if (!streams.containsKey(streamId)) {
+                throw IOException("stream closed")
+              }
+              // Wait until we receive a WINDOW_UPDATE or higher priority streams are done.
+              this@Http2Connection.wait()
             }
-            this@Http2Connection.wait() // Wait until we receive a WINDOW_UPDATE.
+          } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt() // Retain interrupted status.
+            throw InterruptedIOException()
           }
-        } catch (e: InterruptedException) {
-          Thread.currentThread().interrupt() // Retain interrupted status.
-          throw InterruptedIOException()
+
+          toWrite = minOf(byteCount, writeBytesMaximum - writeBytesTotal).toInt()
+          toWrite = minOf(toWrite, writer.maxDataLength())
+          writeBytesTotal += toWrite.toLong()
         }
 
-        toWrite = minOf(byteCount, writeBytesMaximum - writeBytesTotal).toInt()
-        toWrite = minOf(toWrite, writer.maxDataLength())
-        writeBytesTotal += toWrite.toLong()
+        byteCount -= toWrite.toLong()
+        writer.data(outFinished && byteCount == 0L, streamId, buffer, toWrite)
+      }
+    } finally {
+      synchronized(this@Http2Connection) {
+        dataWriters[priority.ordinal]--
+        // Only wake waiters if this was the last writer holding back a lower priority.
+        if (dataWriters[priority.ordinal] == 0 && lowerPriorityWriting(priority)) {
+          this@Http2Connection.notifyAll()
+        }
       }
+    }
+  }
+
+  private fun higherPriorityWriting(priority: RequestPriority): Boolean {
+    for (i in 0 until priority.ordinal) {
+      if (dataWriters[i] > 0) return true
+    }
+    return false
+  }
 
-      byteCount -= toWrite.toLong()
-      writer.data(outFinished && byteCount == 0L, streamId, buffer, toWrite)
+  private fun lowerPriorityWriting(priority: RequestPriority): Boolean {
+    for (i in priority.ordinal + 1 until dataWriters.size) {
+      if (dataWriters[i] > 0) return true
     }
+    return false
   }
 
   internal fun writeSynResetLater(
@@ -473,6 +534,12 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
       socket.close()
     }
 
+    // Let other connections grow their windows into the budget this one reserved.
+    val grownWindowByteCount = synchronized(this) {
+      this.grownWindowByteCount.also { this.grownWindowByteCount = 0L }
+    }
+    if (grownWindowByteCount > 0L) bodyBufferBudget?.releaseWindowGrowth(grownWindowByteCount)
+
     // Release the threads.
     writerQueue.shutdown()
     pushQueue.shutdown()
@@ -483,6 +550,60 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
     close(ErrorCode.PROTOCOL_ERROR, ErrorCode.PROTOCOL_ERROR, e)
   }
 
+  /** Sends a bandwidth-delay probe if [byteCount] bytes of incoming data call for one. */
+  private fun receivedDataForBdp(byteCount: Int) {
+    val bdpEstimator = this.bdpEstimator ?: return
+    val sendProbe = synchronized(this) { bdpEstimator.dataReceived(byteCount) }
+    if (!sendProbe) return
+    writerQueue.execute("$connectionName ping") {
+      synchronized(this@Http2Connection) {
+        bdpEstimator.probeSent(System.nanoTime())
+      }
+      writePing(false, BDP_PING, 0)
+    }
+  }
+
+  /**
+   * Completes a bandwidth-delay probe and advertises a larger receive window if the estimate calls
+   * for one. This raises the connection window with a `WINDOW_UPDATE` and every stream's window by
+   * changing our `INITIAL_WINDOW_SIZE`.
+   *
+   * This runs on the reader thread, which is the only thread that checks incoming data against the
+   * window. The window only grows so it's safe to accept more data before the peer learns of it.
+   */
+  private fun receivedBdpPong() {
+    val bdpEstimator = this.bdpEstimator ?: return
+    val windowSize: Int
+    val delta: Long
+    val streamsToGrow: Array<Http2Stream>
+    synchronized(this) {
+      val currentWindowSize = okHttpSettings.initialWindowSize
+      val requestedWindowSize = bdpEstimator.probeAcknowledged(System.nanoTime())
+      if (requestedWindowSize <= currentWindowSize || isShutdown) return
+
+      // The budget bounds the growth of every connection that shares it.
+      delta = bodyBufferBudget!!.reserveWindowGrowth(
+          requestedWindowSize.toLong() - currentWindowSize)
+      windowSize = currentWindowSize + delta.toInt()
+      bdpEstimator.windowSize = windowSize
+      if (delta == 0L) return
+      grownWindowByteCount += delta
+      okHttpSettings.set(Settings.INITIAL_WINDOW_SIZE, windowSize)
+      streamsToGrow = streams.values.toTypedArray()
+    }
+    for (stream in streamsToGrow) {
+      stream.source.maxByteCount += delta
+    }
+    writerQueue.execute("$connectionName windowSize") {
+      try {
+        writer.settings(Settings().set(Settings.INITIAL_WINDOW_SIZE, windowSize))
+        writer.windowUpdate(0, delta)
+      } catch (e: IOException) {
+        failConnection(e)
+      }
+    }
+  }
+
   /**
    * Sends any initial frames and starts reading frames from the remote peer. This should be called
    * after [Builder.build] for all new connections.
@@ -565,6 +686,8 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
     internal var listener = Listener.REFUSE_INCOMING_STREAMS
     internal var pushObserver = PushObserver.CANCEL
     internal var pingIntervalMillis: Int = 0
+    internal var bodyBufferBudget: BodyBufferBudget? = null
+    internal var maxReceiveWindowSize: Int = 0
 
     @Throws(IOException::class) @JvmOverloads
     fun socket(
@@ -594,6 +717,20 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
       this.pingIntervalMillis = pingIntervalMillis
     }
 
+    fun bodyBufferBudget(bodyBufferBudget: BodyBufferBudget?) = apply {
+      this.bodyBufferBudget = bodyBufferBudget
+    }
+
+    /**
+     * Grow the receive window up to [maxReceiveWindowSize] bytes when the connection's
+     * bandwidth-delay product exceeds it. Growth also requires a bounded [bodyBufferBudget], which
+     * limits the total growth of the connections that share it. By default the window stays at its
+     * initial size.
+     */
+    fun maxReceiveWindowSize(maxReceiveWindowSize: Int) = apply {
+      this.maxReceiveWindowSize = maxReceiveWindowSize
+    }
+
     fun build(): Http2Connection {
       return Http2Connection(this)
     }
@@ -633,6 +770,7 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
       source: BufferedSource,
       length: Int
     ) {
+      receivedDataForBdp(length)
       if (pushedStream(streamId)) {
         pushDataLater(streamId, source, length, inFinished)
         return
@@ -798,6 +936,7 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
             }
           }
         }
+        if (payload1 == BDP_PING) receivedBdpPong()
       } else {
         // Send a reply to a client ping if this is a server and vice versa.
         writerQueue.execute("$connectionName ping") {
@@ -989,6 +1128,9 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
   companion object {
     const val OKHTTP_CLIENT_WINDOW_SIZE = 16 * 1024 * 1024
 
+    /** The largest receive window a client grows to when its memory isn't otherwise capped. */
+    const val OKHTTP_CLIENT_MAX_WINDOW_SIZE = 64 * 1024 * 1024
+
     val DEFAULT_SETTINGS = Settings().apply {
       set(Settings.INITIAL_WINDOW_SIZE, DEFAULT_INITIAL_WINDOW_SIZE)
       set(Settings.MAX_FRAME_SIZE, Http2.INITIAL_MAX_FRAME_SIZE)
@@ -997,6 +1139,7 @@ class Http2Connection internal constructor(builder: Builder) : Closeable {
     const val INTERVAL_PING = 1
     const val DEGRADED_PING = 2
     const val AWAIT_PING = 3
+    const val BDP_PING = 4
     const val DEGRADED_PONG_TIMEOUT_NS = 1_000_000_000 // 1 second.
   }
 }
@@ -21,12 +21,14 @@ import java.io.InterruptedIOException
 import java.net.SocketTimeoutException
 import java.util.ArrayDeque
 import okhttp3.Headers
+import okhttp3.RequestPriority
 import okhttp3.internal.EMPTY_HEADERS
 import okhttp3.internal.assertThreadDoesntHoldLock
+import okhttp3.internal.assertThreadHoldsLock
+import okhttp3.internal.concurrent.WheelTimeout
 import okhttp3.internal.notifyAll
 import okhttp3.internal.toHeaderList
 import okhttp3.internal.wait
-import okio.AsyncTimeout
 import okio.Buffer
 import okio.BufferedSource
 import okio.Sink
@@ -61,6 +63,9 @@ class Http2Stream internal constructor(
   var writeBytesMaximum: Long = connection.peerSettings.initialWindowSize.toLong()
     internal set
 
+  /** Orders this stream's outgoing data frames relative to other streams. Guarded by connection. */
+  internal var priority = RequestPriority.NORMAL
+
   /** Received headers yet to be [taken][takeHeaders], or [read][FramingSource.read]. */
   private val headersQueue = ArrayDeque<Headers>()
 
@@ -315,8 +320,11 @@ class Http2Stream internal constructor(
    * readers.
    */
   inner class FramingSource internal constructor(
-    /** Maximum number of bytes to buffer before reporting a flow control error. */
-    private val maxByteCount: Long,
+    /**
+     * Maximum number of bytes to buffer before reporting a flow control error. This grows with the
+     * connection's receive window and is only accessed by the reader thread after construction.
+     */
+    internal var maxByteCount: Long,
 
     /**
      * True if either side has cleanly shut down this stream. We will receive no more bytes beyond
@@ -339,6 +347,9 @@ class Http2Stream internal constructor(
     /** True if the caller has closed this stream. */
     internal var closed: Boolean = false
 
+    /** True if a window update is waiting for the connection's body buffer budget. */
+    private var acknowledgementDeferred = false
+
     @Throws(IOException::class)
     override fun read(sink: Buffer, byteCount: Long): Long {
       require(byteCount >= 0L) { "byteCount < 0: $byteCount" }
@@ -367,7 +378,8 @@ class Http2Stream internal constructor(
 
               val unacknowledgedBytesRead = readBytesTotal - readBytesAcknowledged
               if (errorExceptionToDeliver == null &&
-                  unacknowledgedBytesRead >= connection.okHttpSettings.initialWindowSize / 2) {
+                  unacknowledgedBytesRead >= connection.okHttpSettings.initialWindowSize / 2 &&
+                  mayAcknowledge()) {
                 // Flow control: notify the peer that we're ready for more data! Only send a
                 // WINDOW_UPDATE if the stream isn't in error.
                 connection.writeWindowUpdateLater(id, unacknowledgedBytesRead)
@@ -392,6 +404,7 @@ class Http2Stream internal constructor(
         if (readBytesDelivered != -1L) {
           // Update connection.unacknowledgedBytesRead outside the synchronized block.
           updateConnectionFlowControl(readBytesDelivered)
+          connection.bodyBufferBudget?.released(readBytesDelivered)
           return readBytesDelivered
         }
 
@@ -413,6 +426,30 @@ class Http2Stream internal constructor(
       connection.updateConnectionFlowControl(read)
     }
 
+    /**
+     * Returns true if the connection's body buffer budget permits a window update now. Otherwise
+     * the window update is sent when the budget has room again.
+     */
+    private fun mayAcknowledge(): Boolean {
+      this@Http2Stream.assertThreadHoldsLock()
+
+      val budget = connection.bodyBufferBudget ?: return true
+      if (acknowledgementDeferred) return false
+      if (budget.acknowledgeOrDefer(Runnable { acknowledgeDeferred() })) return true
+      acknowledgementDeferred = true
+      return false
+    }
+
+    private fun acknowledgeDeferred() {
+      synchronized(this@Http2Stream) {
+        acknowledgementDeferred = false
+        val unacknowledgedBytesRead = readBytesTotal - readBytesAcknowledged
+        if (closed || errorCode != null || unacknowledgedBytesRead <= 0L) return
+        connection.writeWindowUpdateLater(id, unacknowledgedBytesRead)
+        readBytesAcknowledged = readBytesTotal
+      }
+    }
+
     /**
      * Accept bytes on the connection's reader thread. This function avoids holding locks while it
      * performs blocking reads for the incoming bytes.
@@ -458,6 +495,8 @@ class Http2Stream internal constructor(
             bytesDiscarded = receiveBuffer.size
             receiveBuffer.clear()
           } else {
+            // Count the bytes before the reader can see them, so it can't release them first.
+            connection.bodyBufferBudget?.received(receiveBuffer.size)
             val wasEmpty = readBuffer.size == 0L
             readBuffer.writeAll(receiveBuffer)
             if (wasEmpty) {
@@ -484,6 +523,7 @@ class Http2Stream internal constructor(
       }
       if (bytesDiscarded > 0L) {
         updateConnectionFlowControl(bytesDiscarded)
+        connection.bodyBufferBudget?.released(bytesDiscarded)
       }
       cancelStreamIfNecessary()
     }
@@ -664,10 +704,10 @@ class Http2Stream internal constructor(
   }
 
   /**
-   * The Okio timeout watchdog will call [timedOut] if the timeout is reached. In that case we close
+   * The shared timeout wheel will call [timedOut] if the timeout is reached. In that case we close
    * the stream (asynchronously) which will notify the waiting thread.
    */
-  internal inner class StreamTimeout : AsyncTimeout() {
+  internal inner class StreamTimeout : WheelTimeout() {
     override fun timedOut() {
       closeLater(ErrorCode.CANCEL)
       connection.sendDegradedPingLater()
@@ -19,8 +19,11 @@ import java.security.GeneralSecurityException
 import java.security.cert.Certificate
 import java.security.cert.X509Certificate
 import java.util.ArrayDeque
+import java.util.Collections
 import java.util.Deque
 import javax.net.ssl.SSLPeerUnverifiedException
+import okio.ByteString
+import okio.ByteString.Companion.toByteString
 
 /**
  * A certificate chain cleaner that uses a set of trusted root certificates to build the trusted
@@ -36,6 +39,17 @@ import javax.net.ssl.SSLPeerUnverifiedException
 class BasicCertificateChainCleaner(
   private val trustRootIndex: TrustRootIndex
 ) : CertificateChainCleaner() {
+  /**
+   * Recently cleaned chains keyed by the encoded certificates they were cleaned from, in access
+   * order. Peers present the same chain on every connection, so reconnecting skips verifying its
+   * signatures again. Guarded by this.
+   */
+  private val cleanedChains =
+      object : LinkedHashMap<List<ByteString>, List<Certificate>>(0, 0.75f, true) {
+        override fun removeEldestEntry(
+          eldest: MutableMap.MutableEntry<List<ByteString>, List<Certificate>>?
+        ) = size > MAX_CLEANED_CHAINS
+      }
 
   /**
    * Returns a cleaned chain for [chain].
@@ -46,6 +60,20 @@ class BasicCertificateChainCleaner(
    */
   @Throws(SSLPeerUnverifiedException::class)
   override fun clean(chain: List<Certificate>, hostname: String): List<Certificate> {
+    val encodedChain = chain.map { it.encoded.toByteString() }
+    synchronized(this) {
+      cleanedChains[encodedChain]?.let { return it }
+    }
+
+    val result = Collections.unmodifiableList(buildTrustedChain(chain))
+    synchronized(this) {
+      cleanedChains[encodedChain] = result
+    }
+    return result
+  }
+
+  @Throws(SSLPeerUnverifiedException::class)
+  private fun buildTrustedChain(chain: List<Certificate>): List<Certificate> {
     val queue: Deque<Certificate> = ArrayDeque<Certificate>(chain)
     val result = mutableListOf<Certificate>()
     result.add(queue.removeFirst())
@@ -122,5 +150,6 @@ class BasicCertificateChainCleaner(
 
   companion object {
     private const val MAX_SIGNERS = 9
+    private const val MAX_CLEANED_CHAINS = 32
   }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.ws
+
+import java.io.Closeable
+import java.io.IOException
+import java.util.ArrayDeque
+import java.util.zip.Deflater
+import okio.Buffer
+import okio.ByteString
+import okio.ByteString.Companion.decodeHex
+import okio.DeflaterSink
+
+private val EMPTY_DEFLATE_BLOCK = "000000ffff".decodeHex()
+private const val LAST_OCTETS_COUNT_TO_REMOVE_AFTER_DEFLATION = 4
+
+/**
+ * Compresses web socket messages for `permessage-deflate`.
+ *
+ * Deflaters hold tens of kilobytes of native memory, so they are borrowed from a process-wide pool.
+ * With [noContextTakeover] each message is compressed on its own and the deflater goes back to the
+ * pool right after. Otherwise later messages build on the earlier ones' window, so the deflater is
+ * held until this is closed.
+ *
+ * This class is not thread safe.
+ */
+internal class MessageDeflater(
+  private val noContextTakeover: Boolean
+) : Closeable {
+  private val deflatedBytes = Buffer()
+
+  /** Non-null while a deflater is borrowed from the pool. */
+  private var deflater: Deflater? = null
+
+  /** Deflate [buffer] in place as described in RFC 7692 section 7.2.1. */
+  @Throws(IOException::class)
+  fun deflate(buffer: Buffer) {
+    require(deflatedBytes.size == 0L)
+
+    val deflater = this.deflater ?: acquire().also { this.deflater = it }
+    // Don't close the sink, that would end the pooled deflater. Flushing completes the message.
+    val deflaterSink = DeflaterSink(deflatedBytes, deflater)
+    deflaterSink.write(buffer, buffer.size)
+    deflaterSink.flush()
+
+    if (deflatedBytes.endsWith(EMPTY_DEFLATE_BLOCK)) {
+      val newSize = deflatedBytes.size - LAST_OCTETS_COUNT_TO_REMOVE_AFTER_DEFLATION
+      deflatedBytes.readAndWriteUnsafe().use { cursor ->
+        cursor.resizeBuffer(newSize)
+      }
+    } else {
+      // Same as adding EMPTY_DEFLATE_BLOCK and then removing 4 bytes.
+      deflatedBytes.writeByte(0x00)
+    }
+
+    buffer.write(deflatedBytes, deflatedBytes.size)
+
+    if (noContextTakeover) {
+      release(deflater)
+      this.deflater = null
+    }
+  }
+
+  override fun close() {
+    val deflater = this.deflater ?: return
+    this.deflater = null
+    release(deflater)
+  }
+
+  private fun Buffer.endsWith(suffix: ByteString): Boolean =
+      rangeEquals(size - suffix.size, suffix)
+
+  companion object {
+    private const val MAX_POOLED = 8
+
+    /** Deflaters that have been reset and are ready to use. Guarded by itself. */
+    private val pool = ArrayDeque<Deflater>()
+
+    private fun acquire(): Deflater {
+      synchronized(pool) {
+        pool.pollLast()?.let { return it }
+      }
+      return Deflater(Deflater.DEFAULT_COMPRESSION, true /* omit zlib header */)
+    }
+
+    private fun release(deflater: Deflater) {
+      deflater.reset()
+      synchronized(pool) {
+        if (pool.size < MAX_POOLED) {
+          pool.addLast(deflater)
+          return
+        }
+      }
+      deflater.end()
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.ws
+
+import java.io.Closeable
+import java.io.IOException
+import java.net.ProtocolException
+import java.util.ArrayDeque
+import java.util.zip.DataFormatException
+import java.util.zip.Inflater
+import okio.Buffer
+
+private const val OCTETS_TO_ADD_BEFORE_INFLATION = 0x0000ffff
+
+/**
+ * Decompresses web socket messages for `permessage-deflate`.
+ *
+ * Inflaters are borrowed from a process-wide pool. If the peer compresses each message with
+ * [noContextTakeover] the inflater goes back to the pool after every message. Otherwise it keeps
+ * the peer's window across messages and is held until this is closed.
+ *
+ * This class is not thread safe.
+ */
+internal class MessageInflater(
+  private val noContextTakeover: Boolean
+) : Closeable {
+  private val deflatedBytes = Buffer()
+  private val inflatedBytes = ByteArray(8192)
+
+  /** Non-null while an inflater is borrowed from the pool. */
+  private var inflater: Inflater? = null
+
+  /** Inflates [buffer] in place as described in RFC 7692 section 7.2.2. */
+  @Throws(IOException::class)
+  fun inflate(buffer: Buffer) {
+    require(deflatedBytes.size == 0L)
+
+    val inflater = this.inflater ?: acquire().also { this.inflater = it }
+    deflatedBytes.writeAll(buffer)
+    deflatedBytes.writeInt(OCTETS_TO_ADD_BEFORE_INFLATION)
+    inflater.setInput(deflatedBytes.readByteArray())
+
+    try {
+      while (!inflater.needsInput()) {
+        val byteCount = inflater.inflate(inflatedBytes)
+        if (byteCount > 0) {
+          buffer.write(inflatedBytes, 0, byteCount)
+        } else if (inflater.finished()) {
+          // The peer ended its deflate stream. What follows is the empty block we appended.
+          inflater.reset()
+          break
+        } else {
+          throw ProtocolException("Unexpected deflated message")
+        }
+      }
+    } catch (e: DataFormatException) {
+      throw ProtocolException(e.message)
+    }
+
+    if (noContextTakeover) {
+      release(inflater)
+      this.inflater = null
+    }
+  }
+
+  override fun close() {
+    val inflater = this.inflater ?: return
+    this.inflater = null
+    release(inflater)
+  }
+
+  companion object {
+    private const val MAX_POOLED = 8
+
+    /** Inflaters that have been reset and are ready to use. Guarded by itself. */
+    private val pool = ArrayDeque<Inflater>()
+
+    private fun acquire(): Inflater {
+      synchronized(pool) {
+        pool.pollLast()?.let { return it }
+      }
+      return Inflater(true /* omit zlib header */)
+    }
+
+    private fun release(inflater: Inflater) {
+      inflater.reset()
+      synchronized(pool) {
+        if (pool.size < MAX_POOLED) {
+          pool.addLast(inflater)
+          return
+        }
+      }
+      inflater.end()
+    }
+  }
+}
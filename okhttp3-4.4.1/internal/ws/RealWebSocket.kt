@@ -49,7 +49,6 @@ import okio.BufferedSource
 import okio.ByteString
 import okio.ByteString.Companion.encodeUtf8
 import okio.ByteString.Companion.toByteString
-import okio.buffer
 
 class RealWebSocket(
   taskRunner: TaskRunner,
@@ -57,7 +56,14 @@ class RealWebSocket(
   private val originalRequest: Request,
   internal val listener: WebSocketListener,
   private val random: Random,
-  private val pingIntervalMillis: Long
+  private val pingIntervalMillis: Long,
+  /** Messages smaller than this are sent uncompressed even if permessage-deflate is enabled. */
+  private val minimumDeflateSize: Long = DEFAULT_MINIMUM_DEFLATE_SIZE,
+  /**
+   * How long a message may wait for others to be sent with it. Zero sends each message as soon as
+   * the writer runs, together with whatever else was enqueued by then.
+   */
+  private val maxBatchLatencyMillis: Long = 0L
 ) : WebSocket, WebSocketReader.FrameCallback {
   private val key: String
 
@@ -70,6 +76,9 @@ class RealWebSocket(
   /** Null until this web socket is connected. Only accessed by the reader thread. */
   private var reader: WebSocketReader? = null
 
+  /** The extensions agreed on in the handshake. Null until this web socket is connected. */
+  private var extensions: WebSocketExtensions? = null
+
   // All mutable web socket state is guarded by this.
 
   /** Null until this web socket is connected. Note that messages may be enqueued before that. */
@@ -97,6 +106,12 @@ class RealWebSocket(
   /** The total size in bytes of enqueued but not yet transmitted messages. */
   private var queueSize = 0L
 
+  /** Bytes of messages written to the writer but not yet flushed. Only the writer thread. */
+  private var unflushedByteCount = 0L
+
+  /** True if frames were written to the writer but not yet flushed. Only the writer thread. */
+  private var flushPending = false
+
   /** True if we've enqueued a close frame. No further message frames will be enqueued. */
   private var enqueuedClose = false
 
@@ -147,6 +162,7 @@ class RealWebSocket(
         .header("Connection", "Upgrade")
         .header("Sec-WebSocket-Key", key)
         .header("Sec-WebSocket-Version", "13")
+        .header("Sec-WebSocket-Extensions", WebSocketExtensions.CLIENT_OFFER)
         .build()
     call = RealCall(webSocketClient, request, forWebSocket = true)
     call!!.enqueue(object : Callback {
@@ -163,6 +179,17 @@ class RealWebSocket(
           return
         }
 
+        // Apply the extensions. If they're unacceptable initiate a graceful shut down.
+        val extensions = WebSocketExtensions.parse(response.headers)
+        this@RealWebSocket.extensions = extensions
+        if (extensions.unknownValues) {
+          synchronized(this@RealWebSocket) {
+            messageAndCloseQueue.clear() // Don't transmit any messages.
+            close(CLOSE_EXTENSION_REQUIRED,
+                "unexpected Sec-WebSocket-Extensions in response header")
+          }
+        }
+
         // Process all web socket messages.
         try {
           val name = "$okHttpName WebSocket ${request.url.redact()}"
@@ -171,6 +198,8 @@ class RealWebSocket(
           loopReader()
         } catch (e: Exception) {
           failWebSocket(e, null)
+        } finally {
+          reader?.close() // Return the reader's inflater to the pool.
         }
       }
 
@@ -213,10 +242,18 @@ class RealWebSocket(
 
   @Throws(IOException::class)
   fun initReaderAndWriter(name: String, streams: Streams) {
+    val extensions = this.extensions ?: WebSocketExtensions()
     synchronized(this) {
       this.name = name
       this.streams = streams
-      this.writer = WebSocketWriter(streams.client, streams.sink, random)
+      this.writer = WebSocketWriter(
+          isClient = streams.client,
+          sink = streams.sink,
+          random = random,
+          perMessageDeflate = extensions.canDeflate(streams.client),
+          noContextTakeover = extensions.noContextTakeover(streams.client),
+          minimumDeflateSize = minimumDeflateSize
+      )
       this.writerTask = WriterTask()
       if (pingIntervalMillis != 0L) {
         val pingIntervalNanos = MILLISECONDS.toNanos(pingIntervalMillis)
@@ -230,7 +267,13 @@ class RealWebSocket(
       }
     }
 
-    reader = WebSocketReader(streams.client, streams.source, this)
+    reader = WebSocketReader(
+        isClient = streams.client,
+        source = streams.source,
+        frameCallback = this,
+        perMessageDeflate = extensions.perMessageDeflate,
+        noContextTakeover = extensions.noContextTakeover(!streams.client)
+    )
   }
 
   /** Receive frames until there are no more. Invoked only by the reader thread. */
@@ -347,10 +390,12 @@ class RealWebSocket(
       return false
     }
 
-    // Enqueue the message frame.
+    // Enqueue the message frame. Give later messages a chance to join its batch unless the batch
+    // is already large.
     queueSize += data.size.toLong()
     messageAndCloseQueue.add(Message(formatOpcode, data))
-    runWriter()
+    val batchLatencyNanos = MILLISECONDS.toNanos(maxBatchLatencyMillis)
+    runWriter(if (queueSize >= BATCH_FLUSH_SIZE) 0L else batchLatencyNanos)
     return true
   }
 
@@ -393,12 +438,54 @@ class RealWebSocket(
     return true
   }
 
-  private fun runWriter() {
+  private fun runWriter(delayNanos: Long = 0L) {
     this.assertThreadHoldsLock()
 
     val writerTask = writerTask
     if (writerTask != null) {
-      taskQueue.schedule(writerTask)
+      taskQueue.schedule(writerTask, delayNanos)
+    }
+  }
+
+  /**
+   * Writes enqueued frames and then flushes them to the socket together, so that a burst of small
+   * messages costs one write rather than one per message. A batch ends after [BATCH_FLUSH_SIZE]
+   * bytes of messages so that a steady producer doesn't hold their queue space indefinitely.
+   *
+   * Returns true if frames may remain for another batch.
+   *
+   * This method may only be invoked by the writer thread.
+   */
+  @Throws(IOException::class)
+  internal fun writeBatch(): Boolean {
+    val writer = synchronized(this) { this.writer } ?: return false
+    var exhausted = false
+    writer.batching = true
+    try {
+      while (unflushedByteCount < BATCH_FLUSH_SIZE) {
+        if (!writeOneFrame()) {
+          exhausted = true
+          break
+        }
+      }
+    } finally {
+      writer.batching = false
+    }
+
+    if (flushPending) {
+      writer.flush()
+      flushed()
+    }
+    return !exhausted
+  }
+
+  /** Releases the queue space of messages that have been flushed. */
+  private fun flushed() {
+    flushPending = false
+    val byteCount = unflushedByteCount
+    unflushedByteCount = 0L
+    synchronized(this) {
+      queueSize -= byteCount
     }
   }
 
@@ -456,18 +543,17 @@ class RealWebSocket(
     try {
       if (pong != null) {
         writer!!.writePong(pong)
+        if (writer.batching) flushPending = true
       } else if (messageOrClose is Message) {
         val data = (messageOrClose as Message).data
-        val sink = writer!!.newMessageSink(
-            (messageOrClose as Message).formatOpcode, data.size.toLong()).buffer()
-        sink.write(data)
-        sink.close()
-        synchronized(this) {
-          queueSize -= data.size.toLong()
-        }
+        writer!!.writeMessage((messageOrClose as Message).formatOpcode, data)
+        unflushedByteCount += data.size.toLong()
+        if (writer.batching) flushPending = true else flushed()
       } else if (messageOrClose is Close) {
         val close = messageOrClose as Close
-        writer!!.writeClose(close.code, close.reason)
+        writer!!.writeClose(close.code, close.reason) // Also flushes any batched frames.
+        flushed()
+        writer.close() // No more messages. Return the writer's deflater to the pool.
 
         // We closed the writer: now both reader and writer are closed.
         if (streamsToClose != null) {
@@ -514,6 +600,14 @@ class RealWebSocket(
       failed = true
       streamsToClose = this.streams
       this.streams = null
+      val writerToClose = this.writer
+      if (writerToClose != null) {
+        // Return the writer's deflater to the pool. Only the writer thread may use the writer, so
+        // this runs on the task queue after any frame that's being written.
+        taskQueue.execute("$name writer close", cancelable = false) {
+          writerToClose.close()
+        }
+      }
       taskQueue.shutdown()
     }
 
@@ -544,7 +638,7 @@ class RealWebSocket(
   private inner class WriterTask : Task("$name writer") {
     override fun runOnce(): Long {
       try {
-        if (writeOneFrame()) return 0L
+        if (writeBatch()) return 0L // Run again for the frames beyond this batch.
       } catch (e: IOException) {
         failWebSocket(e, null)
       }
@@ -561,10 +655,22 @@ class RealWebSocket(
      */
     private const val MAX_QUEUE_SIZE = 16L * 1024 * 1024 // 16 MiB.
 
+    /** Once this many bytes are enqueued they're written without waiting for the batch latency. */
+    private const val BATCH_FLUSH_SIZE = 16L * 1024 // 16 KiB.
+
     /**
      * The maximum amount of time after the client calls [close] to wait for a graceful shutdown. If
      * the server doesn't respond the web socket will be canceled.
      */
     private const val CANCEL_AFTER_CLOSE_MILLIS = 60L * 1000
+
+    /** Close code for a client that requires extensions the server didn't agree to. */
+    private const val CLOSE_EXTENSION_REQUIRED = 1010
+
+    /**
+     * The smallest message that will be compressed. Smaller messages rarely get smaller, and
+     * compressing them costs more than sending the few extra bytes.
+     */
+    internal const val DEFAULT_MINIMUM_DEFLATE_SIZE = 1024L
   }
 }
@@ -15,6 +15,7 @@
  */
 package okhttp3.internal.ws
 
+import java.io.Closeable
 import java.io.IOException
 import java.net.ProtocolException
 import java.util.concurrent.TimeUnit
@@ -44,17 +45,22 @@ import okio.BufferedSource
 import okio.ByteString
 
 /**
- * An [RFC 6455][rfc_6455]-compatible WebSocket frame reader.
+ * An [RFC 6455][rfc_6455]-compatible WebSocket frame reader. If [perMessageDeflate] was negotiated
+ * it also inflates messages compressed as specified by [RFC 7692][rfc_7692].
  *
  * This class is not thread safe.
  *
  * [rfc_6455]: http://tools.ietf.org/html/rfc6455
+ * [rfc_7692]: https://tools.ietf.org/html/rfc7692
  */
 internal class WebSocketReader(
   private val isClient: Boolean,
   val source: BufferedSource,
-  private val frameCallback: FrameCallback
-) {
+  private val frameCallback: FrameCallback,
+  private val perMessageDeflate: Boolean = false,
+  /** True if the peer compresses each message without reference to earlier ones. */
+  private val noContextTakeover: Boolean = false
+) : Closeable {
 
   var closed = false
 
@@ -63,6 +69,10 @@ internal class WebSocketReader(
   private var frameLength = 0L
   private var isFinalFrame = false
   private var isControlFrame = false
+  private var readingCompressedMessage = false
+
+  /** Lazily created when the peer sends the first compressed message. */
+  private var messageInflater: MessageInflater? = null
 
   private val controlFrameBuffer = Buffer()
   private val messageFrameBuffer = Buffer()
@@ -125,9 +135,20 @@ internal class WebSocketReader(
     }
 
     val reservedFlag1 = b0 and B0_FLAG_RSV1 != 0
+    when (opcode) {
+      OPCODE_TEXT, OPCODE_BINARY -> {
+        // RSV1 marks the first frame of a compressed message.
+        if (reservedFlag1 && !perMessageDeflate) throw ProtocolException("Unexpected rsv1 flag")
+        readingCompressedMessage = reservedFlag1
+      }
+      else -> {
+        if (reservedFlag1) throw ProtocolException("Unexpected rsv1 flag")
+      }
+    }
+
     val reservedFlag2 = b0 and B0_FLAG_RSV2 != 0
     val reservedFlag3 = b0 and B0_FLAG_RSV3 != 0
-    if (reservedFlag1 || reservedFlag2 || reservedFlag3) {
+    if (reservedFlag2 || reservedFlag3) {
       // Reserved flags are for extensions which we currently do not support.
       throw ProtocolException("Reserved flags are unsupported.")
     }
@@ -216,6 +237,12 @@ internal class WebSocketReader(
 
     readMessage()
 
+    if (readingCompressedMessage) {
+      val messageInflater = this.messageInflater
+          ?: MessageInflater(noContextTakeover).also { this.messageInflater = it }
+      messageInflater.inflate(messageFrameBuffer)
+    }
+
     if (opcode == OPCODE_TEXT) {
       frameCallback.onReadMessage(messageFrameBuffer.readUtf8())
     } else {
@@ -264,4 +291,10 @@ internal class WebSocketReader(
       }
     }
   }
+
+  /** Returns the inflater to the pool. Only the reader thread may call this. */
+  override fun close() {
+    messageInflater?.close()
+    messageInflater = null
+  }
 }
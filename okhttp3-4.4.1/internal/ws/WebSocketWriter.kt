@@ -15,9 +15,11 @@
  */
 package okhttp3.internal.ws
 
+import java.io.Closeable
 import java.io.IOException
 import java.util.Random
 import okhttp3.internal.ws.WebSocketProtocol.B0_FLAG_FIN
+import okhttp3.internal.ws.WebSocketProtocol.B0_FLAG_RSV1
 import okhttp3.internal.ws.WebSocketProtocol.B1_FLAG_MASK
 import okhttp3.internal.ws.WebSocketProtocol.OPCODE_CONTINUATION
 import okhttp3.internal.ws.WebSocketProtocol.OPCODE_CONTROL_CLOSE
@@ -36,17 +38,24 @@ import okio.Sink
 import okio.Timeout
 
 /**
- * An [RFC 6455][rfc_6455]-compatible WebSocket frame writer.
+ * An [RFC 6455][rfc_6455]-compatible WebSocket frame writer. If [perMessageDeflate] was negotiated
+ * it also compresses messages of at least [minimumDeflateSize] bytes as specified by
+ * [RFC 7692][rfc_7692].
  *
  * This class is not thread safe.
  *
  * [rfc_6455]: http://tools.ietf.org/html/rfc6455
+ * [rfc_7692]: https://tools.ietf.org/html/rfc7692
  */
 internal class WebSocketWriter(
   private val isClient: Boolean,
   val sink: BufferedSink,
-  val random: Random
-) {
+  val random: Random,
+  private val perMessageDeflate: Boolean = false,
+  /** True if each message must be compressed without reference to earlier ones. */
+  private val noContextTakeover: Boolean = false,
+  private val minimumDeflateSize: Long = 0L
+) : Closeable {
 
   /** The [Buffer] of [sink]. Write to this and then flush/emit [sink]. */
   private val sinkBuffer: Buffer = sink.buffer
@@ -57,6 +66,15 @@ internal class WebSocketWriter(
 
   var activeWriter: Boolean = false
 
+  /** Lazily created when the first message is compressed. */
+  private var messageDeflater: MessageDeflater? = null
+
+  /**
+   * True to buffer frames until [flush] so that a batch of small frames is written to the socket
+   * together. Only complete segments are written while batching.
+   */
+  var batching: Boolean = false
+
   // Masks are only a concern for client writers.
   private val maskKey: ByteArray? = if (isClient) ByteArray(4) else null
   private val maskCursor: Buffer.UnsafeCursor? = if (isClient) Buffer.UnsafeCursor() else null
@@ -137,7 +155,12 @@ internal class WebSocketWriter(
       sinkBuffer.write(payload)
     }
 
-    sink.flush()
+    // Close frames end the stream: never hold them back.
+    if (!batching || opcode == OPCODE_CONTROL_CLOSE) {
+      sink.flush()
+    } else {
+      sink.emitCompleteSegments()
+    }
   }
 
   /**
@@ -157,12 +180,32 @@ internal class WebSocketWriter(
     return frameSink
   }
 
+  /** Writes [data] as a single frame, compressing it first if that was negotiated. */
+  @Throws(IOException::class)
+  fun writeMessage(formatOpcode: Int, data: ByteString) {
+    check(!activeWriter) { "Another message writer is active. Did you call close()?" }
+    if (writerClosed) throw IOException("closed")
+
+    buffer.write(data)
+    var isCompressed = false
+    if (perMessageDeflate && data.size >= minimumDeflateSize) {
+      val messageDeflater = this.messageDeflater
+          ?: MessageDeflater(noContextTakeover).also { this.messageDeflater = it }
+      messageDeflater.deflate(buffer)
+      isCompressed = true
+    }
+
+    writeMessageFrame(formatOpcode, buffer.size, isFirstFrame = true, isFinal = true,
+        isCompressed = isCompressed)
+  }
+
   @Throws(IOException::class)
   fun writeMessageFrame(
     formatOpcode: Int,
     byteCount: Long,
     isFirstFrame: Boolean,
-    isFinal: Boolean
+    isFinal: Boolean,
+    isCompressed: Boolean = false
   ) {
     if (writerClosed) throw IOException("closed")
 
@@ -170,6 +213,9 @@ internal class WebSocketWriter(
     if (isFinal) {
       b0 = b0 or B0_FLAG_FIN
     }
+    if (isCompressed) {
+      b0 = b0 or B0_FLAG_RSV1
+    }
     sinkBuffer.writeByte(b0)
 
     var b1 = 0
@@ -210,7 +256,17 @@ internal class WebSocketWriter(
       sinkBuffer.write(buffer, byteCount)
     }
 
-    sink.emit()
+    if (batching) {
+      sink.emitCompleteSegments()
+    } else {
+      sink.emit()
+    }
+  }
+
+  /** Writes frames buffered while [batching] to the socket. */
+  @Throws(IOException::class)
+  fun flush() {
+    sink.flush()
   }
 
   internal inner class FrameSink : Sink {
@@ -256,4 +312,10 @@ internal class WebSocketWriter(
       activeWriter = false
     }
   }
+
+  /** Returns the deflater to the pool. Only the writer thread may call this. */
+  override fun close() {
+    messageDeflater?.close()
+    messageDeflater = null
+  }
 }